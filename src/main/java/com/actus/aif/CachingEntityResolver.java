@@ -0,0 +1,168 @@
+package com.actus.aif;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+import org.apache.maven.plugin.logging.Log;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.catalog.CatalogFeatures;
+import javax.xml.catalog.CatalogManager;
+import javax.xml.catalog.CatalogResolver;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the external DTDs and entities that samples refer to without fetching them again for every document.
+ * <p>
+ * A system id is first looked up in the configured XML catalogs. Anything that is not a local file then comes from a
+ * content addressed cache on disk: entities are stored under the hash of their content, and an index maps system ids
+ * to those files, so each entity is downloaded once per cache instead of once per sample. In offline mode nothing is
+ * downloaded and an entity that is neither in a catalog nor in the cache is replaced by an empty one.
+ */
+final class CachingEntityResolver implements EntityResolver {
+
+    private static final String INDEX = "index";
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+
+    private final CatalogResolver catalog;
+    private final Path cacheFolder;
+    private final boolean offline;
+    private final Log log;
+
+    /**
+     * system id to the name of the cached file
+     */
+    private final Map<String, String> index = new ConcurrentHashMap<>();
+
+    CachingEntityResolver(List<String> catalogPaths, Path cacheFolder, boolean offline, Log log) throws IOException {
+        this.cacheFolder = cacheFolder;
+        this.offline = offline;
+        this.log = log;
+        if (catalogPaths == null || catalogPaths.isEmpty()) {
+            catalog = null;
+        } else {
+            URI[] uris = catalogPaths.stream().map(path -> Path.of(path).toAbsolutePath().toUri()).toArray(URI[]::new);
+            catalog = CatalogManager.catalogResolver(CatalogFeatures.builder()
+                    .with(CatalogFeatures.Feature.RESOLVE, "continue")
+                    .build(), uris);
+        }
+        Files.createDirectories(cacheFolder);
+        Path indexFile = cacheFolder.resolve(INDEX);
+        if (Files.isRegularFile(indexFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab > 0 && Files.isRegularFile(cacheFolder.resolve(line.substring(tab + 1)))) {
+                        index.put(line.substring(0, tab), line.substring(tab + 1));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a hash of the system ids in the cache and of their content, which decide what an offline build reads
+     */
+    long cachedEntitiesHash() {
+        byte[] bytes = new TreeMap<>(index).toString().getBytes(StandardCharsets.UTF_8);
+        return HASH.hash(bytes, 0, bytes.length, 0);
+    }
+
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
+        InputSource mapped = catalog != null ? catalog.resolveEntity(publicId, systemId) : null;
+        if (mapped != null) {
+            systemId = mapped.getSystemId();
+        }
+        if (systemId == null) {
+            return null;
+        }
+        URI uri;
+        try {
+            uri = new URI(systemId);
+        } catch (URISyntaxException e) {
+            return mapped;
+        }
+        if (uri.getScheme() == null || "file".equalsIgnoreCase(uri.getScheme()) || "jar".equalsIgnoreCase(uri.getScheme())) {
+            return mapped; // local, read it as usual: the catalog's copy if it mapped one, else the original
+        }
+
+        String cached = index.get(systemId);
+        if (cached == null) {
+            if (offline) {
+                log.warn("Offline: replacing external entity " + systemId + " that is not cached by an empty one");
+                return source(systemId, new ByteArrayInputStream(new byte[0]));
+            }
+            cached = fetch(systemId, uri);
+        }
+        return source(systemId, Files.newInputStream(cacheFolder.resolve(cached)));
+    }
+
+    /**
+     * Downloads the entity into the cache; concurrent requests for the same system id download it once.
+     */
+    private String fetch(String systemId, URI uri) throws IOException {
+        try {
+            return index.computeIfAbsent(systemId, key -> {
+                try {
+                    log.info("Caching external entity " + systemId);
+                    URLConnection connection = uri.toURL().openConnection();
+                    connection.setConnectTimeout(TIMEOUT_MILLIS);
+                    connection.setReadTimeout(TIMEOUT_MILLIS);
+                    byte[] content;
+                    try (InputStream in = connection.getInputStream()) {
+                        content = in.readAllBytes();
+                    }
+                    String name = Long.toHexString(HASH.hash(content, 0, content.length, 0)) + ".ent";
+                    Path file = cacheFolder.resolve(name);
+                    if (!Files.isRegularFile(file)) {
+                        Path tmp = Files.createTempFile(cacheFolder, name, ".tmp");
+                        Files.write(tmp, content);
+                        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    appendToIndex(systemId, name);
+                    return name;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw new IOException("Cannot fetch external entity " + systemId, e.getCause());
+        }
+    }
+
+    private synchronized void appendToIndex(String systemId, String name) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(cacheFolder.resolve(INDEX), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(systemId + "\t" + name);
+            writer.newLine();
+        }
+    }
+
+    private static InputSource source(String systemId, InputStream in) {
+        InputSource source = new InputSource(in);
+        source.setSystemId(systemId);
+        return source;
+    }
+}
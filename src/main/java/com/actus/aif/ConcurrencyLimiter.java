@@ -0,0 +1,136 @@
+package com.actus.aif;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adapts the number of concurrent requests to one webdav endpoint, within fixed bounds, by additive increase and
+ * multiplicative decrease: while requests complete normally and the limit is in use it grows by one per limit
+ * completions, roughly one per round trip. It is halved on a failed request or an overload response (429, 503) and
+ * reduced by a tenth when requests queue up on the server, i.e. their latency grows well above the best seen so far.
+ * At most one decrease happens per round trip, so a burst of errors from the same overload counts once.
+ * <p>
+ * Latency is compared per 64 KB transferred, so large and small downloads can be judged against the same baseline.
+ */
+final class ConcurrencyLimiter {
+
+    /**
+     * latency above this multiple of the baseline counts as queueing
+     */
+    private static final double QUEUEING = 2.0;
+
+    private static final long CHUNK_BYTES = 64 * 1024;
+
+    private final int min;
+    private final int max;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private int peakInFlight;
+    private double baselineNanos = Double.NaN;
+    private double smoothedNanos = Double.NaN;
+    private int completionsSinceDecrease;
+    private int decreases;
+
+    /**
+     * @param initial the limit to start with, clamped to the bounds
+     */
+    ConcurrencyLimiter(int min, int max, int initial) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid concurrency bounds " + min + ".." + max);
+        }
+        this.min = min;
+        this.max = max;
+        this.limit = Math.max(min, Math.min(max, initial));
+    }
+
+    /**
+     * Waits until one more request may be sent.
+     */
+    void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if one more request may be sent right away, which must then be released
+     */
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            start();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void start() {
+        inFlight++;
+        peakInFlight = Math.max(peakInFlight, inFlight);
+    }
+
+    /**
+     * Ends a request and adapts the limit to its outcome.
+     *
+     * @param nanos      how long the request took
+     * @param bytes      how many bytes it transferred
+     * @param overloaded whether it failed or the server signalled overload meanwhile
+     * @param cancelled  whether it was cancelled by the client, which says nothing about the server
+     */
+    void release(long nanos, long bytes, boolean overloaded, boolean cancelled) {
+        lock.lock();
+        try {
+            boolean utilized = inFlight >= (int) limit / 2;
+            inFlight--;
+            if (!cancelled) {
+                adapt(nanos / (double) Math.max(1, (bytes + CHUNK_BYTES - 1) / CHUNK_BYTES), overloaded, utilized);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adapt(double nanosPerChunk, boolean overloaded, boolean utilized) {
+        completionsSinceDecrease++;
+        boolean queueing = false;
+        if (!overloaded) {
+            // the baseline follows the best latency, and drifts slowly up should the network get slower for good
+            baselineNanos = Double.isNaN(baselineNanos) ? nanosPerChunk : Math.min(nanosPerChunk, baselineNanos + (nanosPerChunk - baselineNanos) / 256);
+            smoothedNanos = Double.isNaN(smoothedNanos) ? nanosPerChunk : smoothedNanos + (nanosPerChunk - smoothedNanos) / 8;
+            queueing = smoothedNanos > QUEUEING * baselineNanos;
+        }
+        if ((overloaded || queueing) && completionsSinceDecrease >= limit) {
+            limit = Math.max(min, limit * (overloaded ? 0.5 : 0.9));
+            completionsSinceDecrease = 0;
+            decreases++;
+        } else if (!overloaded && !queueing && utilized) {
+            limit = Math.min(max, limit + 1 / limit);
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "concurrency limit " + (int) limit + " of " + min + ".." + max + " (peak " + peakInFlight
+                    + " in flight, " + decreases + " decreases)";
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package com.actus.aif;
+
+import io.milton.httpclient.AbortableProgressListener;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches WebDAV resources on a pool of download threads into temporary files and hands them to
+ * the consumer as they complete.
+ * <p>
+ * Each download holds a share of a byte budget, sized by its expected length, from the moment it
+ * starts until the consumer has taken the sample and calls {@link #release(Sample)}. While the
+ * budget is used up no further download is started, so the budget limits the bytes of transfers
+ * in flight. It bounds neither memory, as fetched samples are on disk, nor the samples waiting for
+ * the inference. A sample larger than the whole budget is still fetched, but only once nothing
+ * else is in flight.
+ * <p>
+ * A download that receives no data for the stall timeout, or runs past its own deadline, is aborted and counted as
+ * timed out; the caller is expected to fail rather than infer from fewer samples than asked for. All downloads
+ * together also share the budget of the download phase, after which the remaining ones are left out on purpose. With
+ * hedging, a download that takes longer than the p95 of the recent ones gets a second, concurrent request for the same
+ * resource and whichever finishes first is kept.
+ */
+final class DownloadPipeline implements AutoCloseable {
+
+    /**
+     * the budget is accounted in KiB so that it fits a {@link Semaphore}
+     */
+    private static final int PERMIT_SIZE = 1024;
+
+    /**
+     * charged for resources whose PROPFIND did not report a content length
+     */
+    private static final long UNKNOWN_SIZE_ESTIMATE = 1024 * 1024;
+
+    /**
+     * completed transfers needed before their p95 is trusted as the hedging delay
+     */
+    private static final int MIN_DURATIONS_FOR_HEDGING = 20;
+
+    private static final long PROGRESS_INTERVAL_SECONDS = 5;
+
+    private final HostPool hosts;
+    private final Log log;
+    private final ExecutorService feeder;
+    private final ExecutorService downloaders;
+    private final CompletionService<Sample> completed;
+    private final Semaphore budget;
+    private final int budgetPermits;
+    private final long budgetBytes;
+    private final long requestTimeoutNanos;
+    private final long stallTimeoutNanos;
+    private final long phaseTimeoutNanos;
+    private final long phaseDeadline;
+    private final boolean hedge;
+    private final ScheduledExecutorService watchdog;
+    private final ExecutorService hedgers;
+    private final TransferProgress progress;
+
+    /**
+     * the durations of the most recent transfers, as a ring buffer
+     */
+    private final long[] durations = new long[256];
+    private long recordedDurations;
+
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger taken = new AtomicInteger();
+    private volatile boolean closedForSubmissions;
+
+    /**
+     * notified whenever a resource is submitted or submissions are closed
+     */
+    private final Object submissions = new Object();
+
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong peakInFlightBytes = new AtomicLong();
+    private final AtomicLong stalledNanos = new AtomicLong();
+    private final AtomicLong fetchedBytes = new AtomicLong();
+    private final AtomicInteger fetchedFiles = new AtomicInteger();
+    private final AtomicInteger failedFiles = new AtomicInteger();
+    private final AtomicInteger timedOutFiles = new AtomicInteger();
+    private final AtomicInteger skippedFiles = new AtomicInteger();
+    private final AtomicInteger hedgedFiles = new AtomicInteger();
+
+    /**
+     * @param requestTimeoutMillis the deadline of a single download, 0 for none
+     * @param stallTimeoutMillis   how long a download may receive no data before it is aborted, 0 for no limit
+     * @param phaseTimeoutMillis   the time all downloads of this pipeline may take together, 0 for no limit;
+     *                             downloads not started by then are skipped
+     * @param hedge                whether slow downloads get a second, concurrent request
+     */
+    DownloadPipeline(HostPool hosts, int threads, long budgetBytes, long requestTimeoutMillis, long stallTimeoutMillis,
+                     long phaseTimeoutMillis, boolean hedge, Log log) {
+        this.hosts = hosts;
+        this.log = log;
+        this.budgetBytes = budgetBytes;
+        this.requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis);
+        this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+        this.phaseTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(phaseTimeoutMillis);
+        this.phaseDeadline = System.nanoTime() + phaseTimeoutNanos;
+        this.hedge = hedge;
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("xsd-download-watchdog"));
+        this.hedgers = Executors.newCachedThreadPool(daemonThreads("xsd-download-hedge"));
+        this.progress = new TransferProgress(log);
+        watchdog.scheduleAtFixedRate(progress::report, PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        this.budgetPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / PERMIT_SIZE));
+        this.budget = new Semaphore(budgetPermits, true);
+        this.feeder = Executors.newSingleThreadExecutor(daemonThreads("xsd-download-feeder"));
+        this.downloaders = Executors.newFixedThreadPool(Math.max(1, threads), daemonThreads("xsd-download"));
+        this.completed = new ExecutorCompletionService<>(downloaders);
+    }
+
+    /**
+     * Queues the resource for download. Never blocks the caller; the wait for budget happens on the
+     * feeder thread.
+     */
+    void submit(WebdavResource resource) {
+        if (closedForSubmissions) {
+            throw new IllegalStateException("No more submissions accepted");
+        }
+        synchronized (submissions) {
+            submitted.incrementAndGet();
+            submissions.notifyAll();
+        }
+        long expected = resource.contentLength != null ? resource.contentLength : UNKNOWN_SIZE_ESTIMATE;
+        progress.fileQueued(expected);
+        feeder.execute(() -> {
+            int permits = (int) Math.max(1, Math.min(budgetPermits, (expected + PERMIT_SIZE - 1) / PERMIT_SIZE));
+            long start = System.nanoTime();
+            try {
+                budget.acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                progress.fileDone();
+                completed.submit(() -> null);
+                return;
+            }
+            stalledNanos.addAndGet(System.nanoTime() - start);
+            long charged = (long) permits * PERMIT_SIZE;
+            long now = inFlightBytes.addAndGet(charged);
+            peakInFlightBytes.accumulateAndGet(now, Math::max);
+            completed.submit(() -> {
+                try {
+                    return download(resource, permits);
+                } finally {
+                    progress.fileDone();
+                }
+            });
+        });
+    }
+
+    /**
+     * Signals that {@link #submit} will not be called again, so that {@link #next()} can report the
+     * end of the stream.
+     */
+    void complete() {
+        synchronized (submissions) {
+            closedForSubmissions = true;
+            submissions.notifyAll();
+        }
+    }
+
+    /**
+     * @return the next successfully fetched sample, in completion order, or null once all submitted
+     * resources have been handed out
+     */
+    Sample next() throws InterruptedException {
+        while (true) {
+            synchronized (submissions) {
+                while (taken.get() >= submitted.get()) {
+                    if (closedForSubmissions) {
+                        return null;
+                    }
+                    submissions.wait();
+                }
+            }
+            // every submission completes exactly one future, so this one will arrive
+            Future<Sample> future = completed.take();
+            taken.incrementAndGet();
+            Sample sample;
+            try {
+                sample = future.get();
+            } catch (ExecutionException e) {
+                log.error("Download failed", e.getCause());
+                continue;
+            }
+            if (sample != null) {
+                return sample;
+            }
+        }
+    }
+
+    /**
+     * Returns the budget held by a sample once the consumer has taken it.
+     */
+    void release(Sample sample) {
+        releasePermits(sample.budgetPermits);
+    }
+
+    private void releasePermits(int permits) {
+        inFlightBytes.addAndGet(-(long) permits * PERMIT_SIZE);
+        budget.release(permits);
+    }
+
+    private Sample download(WebdavResource resource, int permits) {
+        long remaining = phaseDeadline - System.nanoTime();
+        if (phaseTimeoutNanos > 0 && remaining <= 0) {
+            log.warn("Download phase budget exhausted, skipping " + resource.name);
+            skippedFiles.incrementAndGet();
+            releasePermits(permits);
+            return null;
+        }
+        long timeout = requestTimeoutNanos;
+        boolean phaseBound = phaseTimeoutNanos > 0 && (timeout <= 0 || remaining < timeout);
+        if (phaseBound) {
+            timeout = remaining;
+        }
+
+        log.debug("Downloading file: " + resource.name);
+        SampleEvent event = SampleEvent.start();
+        long start = System.nanoTime();
+        Transfer transfer = new Transfer(resource);
+        String overdue = "exceeded its deadline of " + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms";
+        ScheduledFuture<?> deadline = timeout > 0
+                ? watchdog.schedule(() -> transfer.expire(overdue, phaseBound), timeout, TimeUnit.NANOSECONDS) : null;
+        long stallCheck = Math.max(TimeUnit.MILLISECONDS.toNanos(100), stallTimeoutNanos / 4);
+        ScheduledFuture<?> stall = stallTimeoutNanos > 0
+                ? watchdog.scheduleWithFixedDelay(transfer::checkStall, stallCheck, stallCheck, TimeUnit.NANOSECONDS) : null;
+        long hedgeDelay = hedgeDelayNanos();
+        ScheduledFuture<?> hedge = hedgeDelay > 0 ? watchdog.schedule(() -> hedgers.execute(() -> {
+            if (transfer.run(true)) {
+                hedgedFiles.incrementAndGet();
+            }
+        }), hedgeDelay, TimeUnit.NANOSECONDS) : null;
+        try {
+            transfer.run(false);
+            File tempFile = transfer.result.get();
+            recordDuration(System.nanoTime() - start);
+            fetchedFiles.incrementAndGet();
+            fetchedBytes.addAndGet(tempFile.length());
+            event.finish("download", resource.href, tempFile.length());
+            return new Sample(resource.name, resource.href, tempFile, tempFile.length(), permits,
+                    ModelSnapshot.identity(resource));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            releasePermits(permits);
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PhaseExpiredException) {
+                log.warn("Download phase budget exhausted, leaving out " + resource.name);
+                skippedFiles.incrementAndGet();
+            } else if (e.getCause() instanceof TimeoutException) {
+                log.error("Download of " + resource.name + " " + e.getCause().getMessage());
+                timedOutFiles.incrementAndGet();
+            } else {
+                log.error("Error downloading file: " + resource.name, e.getCause());
+            }
+            failedFiles.incrementAndGet();
+            releasePermits(permits);
+            return null;
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (stall != null) {
+                stall.cancel(false);
+            }
+            if (hedge != null) {
+                hedge.cancel(false);
+            }
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * @return how long a download may take before a hedge is sent: the p95 of the recent transfers, or 0 if hedging
+     * is off or there are too few transfers to tell
+     */
+    private long hedgeDelayNanos() {
+        if (!hedge) {
+            return 0;
+        }
+        long[] sorted;
+        synchronized (durations) {
+            if (recordedDurations < MIN_DURATIONS_FOR_HEDGING) {
+                return 0;
+            }
+            sorted = Arrays.copyOf(durations, (int) Math.min(recordedDurations, durations.length));
+        }
+        Arrays.sort(sorted);
+        return sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+    }
+
+    private void recordDuration(long nanos) {
+        synchronized (durations) {
+            durations[(int) (recordedDurations++ % durations.length)] = nanos;
+        }
+    }
+
+    /**
+     * One resource fetched by one or, when hedged, two concurrent requests. The first request to finish wins, the
+     * other one is aborted and its partial file removed.
+     */
+    private final class Transfer {
+
+        final WebdavResource resource;
+        final CompletableFuture<File> result = new CompletableFuture<>();
+        private final List<Attempt> attempts = new ArrayList<>();
+        private int running;
+        private boolean hedged;
+
+        /**
+         * when a request was last sent or data last arrived, 0 while no request has been sent
+         */
+        volatile long lastProgress;
+
+        Transfer(WebdavResource resource) {
+            this.resource = resource;
+        }
+
+        /**
+         * Runs one request for the resource on the calling thread.
+         *
+         * @return whether the request was started
+         */
+        boolean run(boolean asHedge) {
+            Attempt attempt = new Attempt(this);
+            synchronized (this) {
+                if (result.isDone() || (asHedge && hedged)) {
+                    return false;
+                }
+                hedged |= asHedge;
+                attempts.add(attempt);
+                running++;
+            }
+            if (asHedge) {
+                log.info("Download of " + resource.name + " is slower than usual, sending a hedged request");
+            }
+            File tempFile = null;
+            try {
+                tempFile = Files.createTempFile(resource.name, ".xml").toFile();
+                tempFile.deleteOnExit();
+                File target = tempFile;
+                hosts.call(host -> {
+                    host.doGet(resource.path, target, resource.contentLength, attempt);
+                    return target;
+                }, File::length);
+                if (result.complete(tempFile)) {
+                    cancel();
+                } else {
+                    tempFile.delete(); // the other request was faster
+                }
+                synchronized (this) {
+                    running--;
+                }
+            } catch (Exception e) {
+                if (tempFile != null) {
+                    tempFile.delete();
+                }
+                synchronized (this) {
+                    if (--running == 0 && !attempt.cancelled) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            }
+            return true;
+        }
+
+        void expire(String reason, boolean phase) {
+            result.completeExceptionally(phase ? new PhaseExpiredException(reason) : new TimeoutException(reason));
+            cancel();
+        }
+
+        /**
+         * Expires the transfer if a request has been sent and nothing arrived for the stall timeout since.
+         */
+        void checkStall() {
+            long last = lastProgress;
+            if (last != 0 && System.nanoTime() - last > stallTimeoutNanos) {
+                expire("received no data for " + TimeUnit.NANOSECONDS.toMillis(stallTimeoutNanos) + " ms", false);
+            }
+        }
+
+        synchronized void cancel() {
+            attempts.forEach(Attempt::cancel);
+        }
+    }
+
+    /**
+     * Aborts a transfer because the download phase ran out, rather than its own timeouts.
+     */
+    private static final class PhaseExpiredException extends TimeoutException {
+
+        PhaseExpiredException(String message) {
+            super(message);
+        }
+    }
+
+    private final class Attempt implements AbortableProgressListener {
+
+        private final Transfer transfer;
+        private volatile boolean cancelled;
+        private volatile Runnable abort;
+
+        Attempt(Transfer transfer) {
+            this.transfer = transfer;
+        }
+
+        @Override
+        public void onStart(Runnable abort) {
+            this.abort = abort;
+            transfer.lastProgress = System.nanoTime();
+            if (cancelled) {
+                abort.run();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            Runnable abort = this.abort;
+            if (abort != null) {
+                abort.run();
+            }
+        }
+
+        @Override
+        public void onRead(final int i) {
+            transfer.lastProgress = System.nanoTime();
+            progress.bytesRead(i);
+        }
+
+        @Override
+        public void onProgress(final long l, final Long aLong, final String s) {
+            log.debug("Downloading a temporary copy of file: " + s + " (" + l + " bytes)");
+        }
+
+        @Override
+        public void onComplete(final String s) {
+            log.debug("Downloaded: " + s);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * @return the number of downloads aborted by their deadline or the stall timeout so far
+     */
+    int timedOutFiles() {
+        return timedOutFiles.get();
+    }
+
+    /**
+     * Logs the pipeline metrics.
+     */
+    void report() {
+        progress.report();
+        log.info("Download pipeline: " + fetchedFiles.get() + " files (" + fetchedBytes.get() + " bytes) fetched, "
+                + failedFiles.get() + " failed; peak in-flight " + peakInFlightBytes.get() + " of " + budgetBytes
+                + " budget bytes, downloads waited " + TimeUnit.NANOSECONDS.toMillis(stalledNanos.get())
+                + " ms for budget; " + timedOutFiles.get() + " timed out, " + skippedFiles.get()
+                + " skipped after the phase budget, " + hedgedFiles.get() + " hedged");
+        hosts.report();
+    }
+
+    @Override
+    public void close() {
+        synchronized (submissions) {
+            closedForSubmissions = true;
+            submissions.notifyAll();
+        }
+        feeder.shutdownNow();
+        downloaders.shutdownNow();
+        watchdog.shutdownNow();
+        hedgers.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,216 @@
+package com.actus.aif;
+
+import io.milton.httpclient.Host;
+import io.milton.httpclient.HttpException;
+import io.milton.httpclient.Utils;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Equivalent webdav endpoints, e.g. a primary server and read mirrors holding the same samples under the same
+ * relative paths. Each request goes to the endpoint with the fewest outstanding requests, so a slow endpoint
+ * naturally gets less work; ties are broken round robin. A request that fails is retried on the next endpoint, and
+ * an endpoint that failed at the transport level or with a server error (5xx) is avoided for a while. Other errors,
+ * such as a resource missing on one mirror, say nothing about the health of the endpoint.
+ * <p>
+ * With {@link #limitConcurrency}, each endpoint admits only as many concurrent requests as its
+ * {@link ConcurrencyLimiter} currently allows; a request goes to an endpoint with a free slot, or waits for one.
+ */
+final class HostPool {
+
+    /**
+     * how long an endpoint is avoided after a transport or server error
+     */
+    private static final long DOWN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    @FunctionalInterface
+    interface HostCall<T> {
+        T call(Host host) throws Exception;
+    }
+
+    static final class Endpoint {
+
+        final String name;
+        final Host host;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicInteger seenOverloads = new AtomicInteger();
+        volatile long downUntil;
+        volatile ConcurrencyLimiter limiter;
+
+        Endpoint(String name, Host host) {
+            this.name = name;
+            this.host = host;
+        }
+
+        boolean isDown(long now) {
+            return downUntil - now > 0;
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final AtomicInteger nextStart = new AtomicInteger();
+    private final Log log;
+
+    HostPool(List<Endpoint> endpoints, Log log) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one webdav endpoint is required");
+        }
+        this.endpoints = endpoints;
+        this.log = log;
+    }
+
+    static HostPool of(Host host, Log log) {
+        return new HostPool(Collections.singletonList(new Endpoint(host.server, host)), log);
+    }
+
+    /**
+     * Adapts the number of concurrent requests to each endpoint from now on.
+     *
+     * @param initial the limit each endpoint starts with
+     */
+    void limitConcurrency(int min, int max, int initial) {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.limiter = new ConcurrencyLimiter(min, max, initial);
+        }
+    }
+
+    /**
+     * @return the first endpoint, used for requests whose state is specific to one server such as sync tokens
+     */
+    Host primary() {
+        return endpoints.get(0).host;
+    }
+
+    /**
+     * Runs the call on the least loaded endpoint, failing over to the others in turn.
+     *
+     * @param size the bytes transferred by a successful call, for the throughput report
+     * @throws Exception what the call threw on the last endpoint tried; a cancelled call is not retried
+     */
+    <T> T call(HostCall<T> call, ToLongFunction<? super T> size) throws Exception {
+        return call(call, size, candidates());
+    }
+
+    /**
+     * Runs the call on the {@link #primary()} endpoint without failing over, admitted by its limiter and feeding it
+     * like any other request.
+     *
+     * @param size the bytes transferred by a successful call, for the throughput report
+     * @throws Exception what the call threw
+     */
+    <T> T callPrimary(HostCall<T> call, ToLongFunction<? super T> size) throws Exception {
+        return call(call, size, new ArrayList<>(endpoints.subList(0, 1)));
+    }
+
+    private <T> T call(HostCall<T> call, ToLongFunction<? super T> size, List<Endpoint> candidates) throws Exception {
+        Exception failure = null;
+        while (!candidates.isEmpty()) {
+            Endpoint endpoint = admit(candidates);
+            ConcurrencyLimiter limiter = endpoint.limiter;
+            endpoint.outstanding.incrementAndGet();
+            endpoint.requests.incrementAndGet();
+            long start = System.nanoTime();
+            long bytes = 0;
+            boolean failed = false;
+            boolean cancelled = false;
+            try {
+                T result = call.call(endpoint.host);
+                bytes = size.applyAsLong(result);
+                endpoint.bytes.addAndGet(bytes);
+                return result;
+            } catch (Utils.CancelledException e) {
+                cancelled = true;
+                throw e;
+            } catch (Exception e) {
+                endpoint.failures.incrementAndGet();
+                failed = isEndpointFailure(e);
+                if (failed) {
+                    endpoint.downUntil = System.nanoTime() + DOWN_NANOS;
+                }
+                if (failure != null) {
+                    e.addSuppressed(failure);
+                }
+                failure = e;
+                if (!candidates.isEmpty()) {
+                    log.warn("Request to " + endpoint.name + " failed, trying another endpoint: " + e.getMessage());
+                }
+            } finally {
+                long nanos = System.nanoTime() - start;
+                endpoint.busyNanos.addAndGet(nanos);
+                endpoint.outstanding.decrementAndGet();
+                if (limiter != null) {
+                    int overloads = endpoint.host.getOverloadResponseCount();
+                    boolean overloaded = failed || endpoint.seenOverloads.getAndSet(overloads) != overloads;
+                    limiter.release(nanos, bytes, overloaded, cancelled);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * @return whether the failure suggests the endpoint itself is unhealthy, rather than the request or the resource
+     */
+    private static boolean isEndpointFailure(Exception e) {
+        return e instanceof IOException || e instanceof HttpException && ((HttpException) e).getResult() >= 500;
+    }
+
+    /**
+     * Removes the endpoint to send the next request to from the candidates, holding a slot of its limiter: the first
+     * healthy one with a free slot, otherwise the first one once it has a free slot.
+     */
+    private static Endpoint admit(List<Endpoint> candidates) throws InterruptedException {
+        long now = System.nanoTime();
+        for (int i = 0; i < candidates.size(); i++) {
+            Endpoint endpoint = candidates.get(i);
+            ConcurrencyLimiter limiter = endpoint.limiter;
+            if (limiter == null || (i == 0 || !endpoint.isDown(now)) && limiter.tryAcquire()) {
+                return candidates.remove(i);
+            }
+        }
+        Endpoint endpoint = candidates.remove(0);
+        endpoint.limiter.acquire();
+        return endpoint;
+    }
+
+    /**
+     * @return the endpoints in the order they should be tried: healthy ones by outstanding requests, then the ones
+     * that failed recently
+     */
+    private List<Endpoint> candidates() {
+        int start = Math.floorMod(nextStart.getAndIncrement(), endpoints.size());
+        List<Endpoint> rotated = new ArrayList<>(endpoints.subList(start, endpoints.size()));
+        rotated.addAll(endpoints.subList(0, start));
+        long now = System.nanoTime();
+        rotated.sort(Comparator.<Endpoint>comparingInt(endpoint -> endpoint.isDown(now) ? 1 : 0)
+                .thenComparingInt(endpoint -> endpoint.outstanding.get()));
+        return rotated;
+    }
+
+    /**
+     * Logs requests, failures, throughput and authentication round-trips per endpoint.
+     */
+    void report() {
+        for (Endpoint endpoint : endpoints) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(endpoint.busyNanos.get());
+            log.info("Endpoint " + endpoint.name + ": " + endpoint.requests.get() + " requests, "
+                    + endpoint.failures.get() + " failed, " + endpoint.bytes.get() + " bytes in " + millis + " ms"
+                    + (millis > 0 ? " (" + endpoint.bytes.get() * 1000 / 1024 / millis + " KB/s)" : "") + ", "
+                    + endpoint.host.getAuthChallengeCount() + " authentication challenges"
+                    + (endpoint.limiter != null ? ", " + endpoint.limiter : ""));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.actus.aif;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory used by the schema inference of one build: the bytes allocated by the inferring threads, related to the
+ * number and size of the samples read, and the peak heap of the whole goal. Compared against configured ceilings it
+ * fails a build whose samples grew the inference towards an {@link OutOfMemoryError} before it gets there.
+ * <p>
+ * Allocation is counted per thread by the JVM, so only threads inside {@link #start()} / {@link #finish} are
+ * measured. The peak heap is the heap still in use right after a garbage collection, the highest while this meter was
+ * open: between collections the usage includes garbage and says little about how close the goal came to running out of
+ * memory. Nothing global is reset, so other plugins and meters in the same JVM are not affected.
+ */
+final class InferenceMemory implements AutoCloseable {
+
+    private static final double MB = 1024 * 1024;
+
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private final com.sun.management.ThreadMXBean threads;
+    private final MemoryMXBean heap = ManagementFactory.getMemoryMXBean();
+    private final List<NotificationEmitter> collectors = new ArrayList<>();
+    private final NotificationListener afterCollection = (notification, handback) -> sampleHeap();
+
+    private final AtomicLong peakHeap = new AtomicLong();
+    private final AtomicInteger collections = new AtomicInteger();
+
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder inputBytes = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+
+    InferenceMemory() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+            threads.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            threads = null;
+        }
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(afterCollection, notification -> GC_NOTIFICATION.equals(notification.getType()), null);
+                collectors.add(emitter);
+            }
+        }
+    }
+
+    private void sampleHeap() {
+        collections.incrementAndGet();
+        peakHeap.accumulateAndGet(heap.getHeapMemoryUsage().getUsed(), Math::max);
+    }
+
+    /**
+     * @return the allocation counter of the current thread, to be passed to {@link #finish}
+     */
+    long start() {
+        return threads != null ? threads.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * Adds what the current thread allocated since {@link #start()} while inferring from the given samples.
+     */
+    void finish(long start, List<String> filePaths) {
+        if (threads != null) {
+            allocatedBytes.add(threads.getCurrentThreadAllocatedBytes() - start);
+        }
+        samples.add(filePaths.size());
+        for (String filePath : filePaths) {
+            inputBytes.add(new File(filePath).length());
+        }
+    }
+
+    /**
+     * @return the bytes allocated per MB of input, or 0 if nothing was measured
+     */
+    double allocatedPerInputMb() {
+        long input = inputBytes.sum();
+        return input > 0 ? allocatedBytes.sum() / (input / MB) : 0;
+    }
+
+    /**
+     * @return the highest heap in use after a garbage collection since this meter was created, in bytes, or 0 if
+     * there was no collection
+     */
+    long peakHeap() {
+        return peakHeap.get();
+    }
+
+    /**
+     * Logs the measurements and fails if they exceed the given ceilings.
+     *
+     * @param maxAllocationPerInputMb the most MB allocated per MB of input, 0 for no limit
+     * @param maxPeakHeapMb           the most MB of heap the goal may have used, 0 for no limit
+     * @throws MojoFailureException if a ceiling was exceeded
+     */
+    void check(double maxAllocationPerInputMb, int maxPeakHeapMb, Log log) throws MojoFailureException {
+        long count = samples.sum();
+        double allocatedPerMb = allocatedPerInputMb() / MB;
+        double peakMb = peakHeap() / MB;
+        double maxHeapMb = Runtime.getRuntime().maxMemory() / MB;
+        if (threads != null && count > 0) {
+            log.info(String.format(Locale.ROOT, "Inference allocated %.1f MB for %d samples of %.1f MB: %.1f KB per sample, %.1f MB per MB of input",
+                    allocatedBytes.sum() / MB, count, inputBytes.sum() / MB, allocatedBytes.sum() / 1024.0 / count, allocatedPerMb));
+        }
+        log.info(String.format(Locale.ROOT, "Peak heap after garbage collection %.1f MB of %.1f MB (%d collections)",
+                peakMb, maxHeapMb, collections.get()));
+
+        if (maxAllocationPerInputMb > 0 && threads != null && allocatedPerMb > maxAllocationPerInputMb) {
+            throw new MojoFailureException(String.format(Locale.ROOT,
+                    "Inference allocated %.1f MB per MB of input, more than maxAllocationPerInputMb %.1f", allocatedPerMb, maxAllocationPerInputMb));
+        }
+        if (maxPeakHeapMb > 0 && peakMb > maxPeakHeapMb) {
+            throw new MojoFailureException(String.format(Locale.ROOT,
+                    "Peak heap after garbage collection was %.1f MB, more than maxPeakHeapMb %d", peakMb, maxPeakHeapMb));
+        }
+    }
+
+    /**
+     * Stops listening for garbage collections.
+     */
+    @Override
+    public void close() {
+        for (NotificationEmitter collector : collectors) {
+            try {
+                collector.removeNotificationListener(afterCollection);
+            } catch (ListenerNotFoundException e) {
+                // never added
+            }
+        }
+        collectors.clear();
+    }
+}
@@ -0,0 +1,194 @@
+package com.actus.aif;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * What the schema inference has learned from the samples of earlier builds, persisted so that a later build only
+ * needs to download and read the samples that are new since then.
+ * <p>
+ * trang keeps no model that could be saved and extended, so the snapshot stores the distinct {@link SampleSkeleton
+ * skeletons} of all samples seen so far instead; inferring from them yields the schema of all those samples. Samples
+ * are identified by href and ETag, local files by path, size and modification time. The snapshot only grows: a
+ * sample that disappears from its source stays part of the schema until the snapshot file is deleted.
+ * <p>
+ * Binary format: a magic number and a format version, followed by a deflated body with the sample identities, the
+ * skeletons and the {@link ValueSketch value sketches} of all samples. A snapshot written by a different version is
+ * rejected.
+ */
+final class ModelSnapshot {
+
+    private static final int MAGIC = 0x58534d53; // "XSMS"
+    /**
+     * 3: skeletons keep the values trang's datatype checks tell apart, and value sketches have the binary classes
+     */
+    private static final int VERSION = 3;
+
+    private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+
+    private final Path file;
+    private final Set<String> identities = new HashSet<>();
+
+    /**
+     * the distinct skeletons keyed by the hash of their bytes
+     */
+    private final Map<Long, byte[]> skeletons = new LinkedHashMap<>();
+
+    /**
+     * the value sketches of all samples in the snapshot, keyed by path
+     */
+    private final Map<String, ValueSketch> profile = new TreeMap<>();
+
+    private ModelSnapshot(Path file) {
+        this.file = file;
+    }
+
+    static ModelSnapshot empty(Path file) {
+        return new ModelSnapshot(file);
+    }
+
+    static ModelSnapshot load(Path file) throws IOException {
+        ModelSnapshot snapshot = new ModelSnapshot(file);
+        if (!Files.isRegularFile(file)) {
+            return snapshot;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a model snapshot");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported model snapshot version " + version);
+            }
+            DataInputStream body = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
+            int identityCount = body.readInt();
+            for (int i = 0; i < identityCount; i++) {
+                snapshot.identities.add(body.readUTF());
+            }
+            int skeletonCount = body.readInt();
+            for (int i = 0; i < skeletonCount; i++) {
+                long hash = body.readLong();
+                byte[] skeleton = new byte[body.readInt()];
+                body.readFully(skeleton);
+                snapshot.skeletons.put(hash, skeleton);
+            }
+            int profileCount = body.readInt();
+            for (int i = 0; i < profileCount; i++) {
+                snapshot.profile.put(body.readUTF(), ValueSketch.readFrom(body));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the identity of a webdav resource, or null if it has no ETag and cannot be recognized again
+     */
+    static String identity(WebdavResource resource) {
+        return resource.etag == null ? null : resource.href + "#" + resource.etag;
+    }
+
+    static String identity(File file) {
+        return file.getAbsolutePath() + "#" + file.length() + "#" + file.lastModified();
+    }
+
+    boolean covers(String identity) {
+        return identity != null && identities.contains(identity);
+    }
+
+    /**
+     * Records a sample by its skeleton.
+     *
+     * @param identity the identity of the sample, or null if it cannot be recognized again
+     */
+    void add(String identity, byte[] skeleton) {
+        if (identity != null) {
+            identities.add(identity);
+        }
+        skeletons.putIfAbsent(HASH.hash(skeleton, 0, skeleton.length, 0), skeleton);
+    }
+
+    /**
+     * Merges the sketches of new samples into the profile of the snapshot.
+     *
+     * @return the merged profile
+     */
+    Map<String, ValueSketch> mergeProfile(Map<String, ValueSketch> newProfile) {
+        ValueProfiler.merge(profile, newProfile);
+        return profile;
+    }
+
+    boolean isEmpty() {
+        return skeletons.isEmpty();
+    }
+
+    int sampleCount() {
+        return identities.size();
+    }
+
+    int skeletonCount() {
+        return skeletons.size();
+    }
+
+    /**
+     * Writes every skeleton to its own file in the given folder.
+     *
+     * @return the paths of the written files
+     */
+    List<String> writeSkeletons(Path folder) throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (Map.Entry<Long, byte[]> skeleton : skeletons.entrySet()) {
+            Path path = folder.resolve(Long.toHexString(skeleton.getKey()) + ".xml");
+            Files.write(path, skeleton.getValue());
+            paths.add(path.toString());
+        }
+        return paths;
+    }
+
+    void save() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+            DataOutputStream body = new DataOutputStream(new BufferedOutputStream(deflater));
+            body.writeInt(identities.size());
+            for (String identity : identities) {
+                body.writeUTF(identity);
+            }
+            body.writeInt(skeletons.size());
+            for (Map.Entry<Long, byte[]> skeleton : skeletons.entrySet()) {
+                body.writeLong(skeleton.getKey());
+                body.writeInt(skeleton.getValue().length);
+                body.write(skeleton.getValue());
+            }
+            body.writeInt(profile.size());
+            for (Map.Entry<String, ValueSketch> node : profile.entrySet()) {
+                body.writeUTF(node.getKey());
+                node.getValue().writeTo(body);
+            }
+            body.flush();
+            deflater.finish();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
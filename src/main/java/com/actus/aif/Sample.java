@@ -0,0 +1,49 @@
+package com.actus.aif;
+
+import java.io.File;
+
+/**
+ * A sample XML document that has been made available on the local file system and is ready to be
+ * fed to the schema inference.
+ */
+final class Sample {
+
+    /**
+     * the name of the sample as it appears at its source
+     */
+    final String name;
+
+    /**
+     * where the sample came from: the webdav href or the local path
+     */
+    final String source;
+
+    /**
+     * the local copy of the sample
+     */
+    final File file;
+
+    /**
+     * the size of the local copy in bytes
+     */
+    final long size;
+
+    /**
+     * the share of the download budget held by this sample until it has been ingested
+     */
+    final int budgetPermits;
+
+    /**
+     * recognizes the same version of the sample in a later build, see {@link ModelSnapshot}; null if it cannot be
+     */
+    final String identity;
+
+    Sample(String name, String source, File file, long size, int budgetPermits, String identity) {
+        this.name = name;
+        this.source = source;
+        this.file = file;
+        this.size = size;
+        this.budgetPermits = budgetPermits;
+        this.identity = identity;
+    }
+}
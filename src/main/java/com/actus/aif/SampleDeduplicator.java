@@ -0,0 +1,91 @@
+package com.actus.aif;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognises samples that are exact copies of one already seen, so that the same message found in
+ * several webdav folders or as a local copy is only downloaded and inferred once.
+ * <p>
+ * Remote resources are first matched by path, ETag and size from the PROPFIND, which avoids the
+ * download of a resource listed again, from a mirror or an overlapping folder. ETags are only
+ * meaningful per resource, so copies under different paths are downloaded and matched by a 64 bit
+ * xxHash of their content plus their size, as is everything else that is read.
+ */
+final class SampleDeduplicator {
+
+    private static final long SEED = 0x9747b28cL;
+
+    private static final XXHashFactory HASHES = XXHashFactory.fastestInstance();
+    private final Set<String> remoteKeys = ConcurrentHashMap.newKeySet();
+    private final Set<String> contentKeys = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger skippedDownloads = new AtomicInteger();
+    private final AtomicLong skippedDownloadBytes = new AtomicLong();
+    private final AtomicInteger skippedContents = new AtomicInteger();
+    private final AtomicLong skippedContentBytes = new AtomicLong();
+
+    /**
+     * @return true if the resource has been seen before under the same path, relative to the root of whichever
+     * endpoint listed it, with the same ETag and size, and need not be downloaded
+     */
+    boolean isDuplicateResource(WebdavResource resource) {
+        if (resource.etag == null || resource.etag.isEmpty() || resource.contentLength == null || resource.path == null) {
+            return false;
+        }
+        String key = resource.path + "\n" + resource.etag + '/' + resource.contentLength;
+        if (remoteKeys.add(key)) {
+            return false;
+        }
+        skippedDownloads.incrementAndGet();
+        skippedDownloadBytes.addAndGet(resource.contentLength);
+        return true;
+    }
+
+    /**
+     * @return true if a file with the same content has been seen before and need not be inferred again
+     */
+    boolean isDuplicateContent(File file) throws IOException {
+        long size = file.length();
+        String key = Long.toHexString(contentHash(file)) + '/' + size;
+        if (contentKeys.add(key)) {
+            return false;
+        }
+        skippedContents.incrementAndGet();
+        skippedContentBytes.addAndGet(size);
+        return true;
+    }
+
+    /**
+     * @return the 64 bit xxHash of the content of the file
+     */
+    static long contentHash(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file);
+             StreamingXXHash64 hash = HASHES.newStreamingHash64(SEED)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                hash.update(buf, 0, n);
+            }
+            return hash.getValue();
+        }
+    }
+
+    /**
+     * @return a one line summary of what deduplication saved
+     */
+    String summary() {
+        return "Deduplication skipped " + skippedDownloads.get() + " downloads (" + skippedDownloadBytes.get()
+                + " bytes) by ETag and " + skippedContents.get() + " files (" + skippedContentBytes.get()
+                + " bytes) by content hash";
+    }
+}
@@ -0,0 +1,43 @@
+package com.actus.aif;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for the work done on a single sample: downloading, profiling, reducing or validating it. The
+ * fields are only filled in when the event is recorded.
+ */
+@Name("com.actus.aif.Sample")
+@Label("Sample Processing")
+@Category({"XML Schema Generator"})
+final class SampleEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Sample")
+    String source;
+
+    @Label("Size")
+    @DataAmount
+    long size;
+
+    static SampleEvent start() {
+        SampleEvent event = new SampleEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(String phase, String source, long size) {
+        end();
+        if (shouldCommit()) {
+            this.phase = phase;
+            this.source = source;
+            this.size = size;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package com.actus.aif;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cuts one huge XML sample into shards that can be read in parallel. A shard is a byte range of the file starting at
+ * a record, an occurrence of the repeating element. It is preceded by the XML declaration and the start tags of the
+ * record's ancestors exactly as they appear in the file, so it carries their namespace declarations, and followed by
+ * the end tags of the elements still open where it stops. Each shard is a well-formed document with the same element
+ * paths as the original.
+ * <p>
+ * The boundaries are found by one pass of a byte level scanner over the memory mapped file. It understands just
+ * enough XML to track the element depth: comments, processing instructions, CDATA sections and quoted attribute
+ * values. It needs an ASCII compatible encoding and no document type declaration, whose entities a shard could not
+ * see; such files are not sharded.
+ */
+final class SampleSharder {
+
+    /**
+     * how much of the file is mapped at a time
+     */
+    private static final long WINDOW_BYTES = 1L << 30;
+
+    /**
+     * how much of the file is looked at to detect the record element
+     */
+    private static final long DETECT_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * how often an element must occur at the same depth to be taken as the record element
+     */
+    private static final int DETECT_REPEATS = 16;
+
+    /**
+     * One byte range of the sample, readable as a document of its own.
+     */
+    static final class Shard {
+
+        private final File file;
+        final long start;
+        final long end;
+
+        /**
+         * the number of ancestors whose start tags precede the shard, 0 for the first shard
+         */
+        final int depth;
+        private final byte[] prefix;
+        private final byte[] suffix;
+
+        Shard(File file, long start, long end, int depth, byte[] prefix, byte[] suffix) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.depth = depth;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        /**
+         * @return the shard as a well-formed document, unbuffered
+         */
+        InputStream open() throws IOException {
+            return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                    new ByteArrayInputStream(prefix), new RangeInputStream(file, start, end), new ByteArrayInputStream(suffix))));
+        }
+    }
+
+    /**
+     * the local name of the record element, or null to detect it
+     */
+    private final String recordElement;
+
+    /**
+     * @param recordElement the local name of the repeating element to cut at, null or empty to detect the shallowest
+     *                      element that repeats
+     */
+    SampleSharder(String recordElement) {
+        this.recordElement = recordElement == null || recordElement.isEmpty() ? null : recordElement;
+    }
+
+    /**
+     * @param shardBytes the size from which a shard is cut at the next record
+     * @return the shards of the file in document order, or an empty list if it cannot be sharded or has only one
+     * shard
+     */
+    List<Shard> split(File file, long shardBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 2 || isUtf16(channel)) {
+                return Collections.emptyList();
+            }
+            RecordDetector detector = new RecordDetector();
+            scan(channel, Math.min(size, DETECT_BYTES), detector);
+            if (detector.unsupported || !detector.decide()) {
+                return Collections.emptyList();
+            }
+            Cutter cutter = new Cutter(detector.recordDepth, detector.recordName, shardBytes);
+            if (!scan(channel, size, cutter) || cutter.cuts.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            byte[] declaration = detector.declarationEnd > 0 ? read(channel, 0, detector.declarationEnd) : new byte[0];
+            List<Shard> shards = new ArrayList<>();
+            long start = 0;
+            int depth = 0;
+            byte[] prefix = new byte[0];
+            for (Cut cut : cutter.cuts) {
+                shards.add(new Shard(file, start, cut.offset, depth, prefix, endTags(cut.ancestors)));
+                ByteArrayOutputStream startTags = new ByteArrayOutputStream();
+                startTags.write(declaration);
+                for (Open ancestor : cut.ancestors) {
+                    startTags.write(read(channel, ancestor.tagStart, ancestor.tagEnd));
+                }
+                start = cut.offset;
+                depth = cut.ancestors.size();
+                prefix = startTags.toByteArray();
+            }
+            shards.add(new Shard(file, start, size, depth, prefix, new byte[0]));
+            return shards;
+        }
+    }
+
+    /**
+     * @return true if the file starts with a UTF-16 byte order mark or a zero byte, which the scanner cannot read
+     */
+    private static boolean isUtf16(FileChannel channel) throws IOException {
+        byte[] head = read(channel, 0, 2);
+        return head[0] == (byte) 0xFE && head[1] == (byte) 0xFF || head[0] == (byte) 0xFF && head[1] == (byte) 0xFE
+                || head[0] == 0 || head[1] == 0;
+    }
+
+    private static byte[] endTags(List<Open> ancestors) {
+        ByteArrayOutputStream tags = new ByteArrayOutputStream();
+        for (int i = ancestors.size() - 1; i >= 0; i--) {
+            tags.write('<');
+            tags.write('/');
+            tags.writeBytes(ancestors.get(i).name);
+            tags.write('>');
+        }
+        return tags.toByteArray();
+    }
+
+    private static byte[] read(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(end - start));
+        while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0) {
+            // positional reads leave the channel position alone
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Feeds the first bytes of the file to the scanner, a mapped window at a time.
+     *
+     * @return false if the scanner gave up
+     */
+    private static boolean scan(FileChannel channel, long length, Scanner scanner) throws IOException {
+        for (long base = 0; base < length; base += WINDOW_BYTES) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW_BYTES, length - base));
+            int limit = window.limit();
+            for (int i = 0; i < limit; i++) {
+                if (!scanner.next(window.get(i), base + i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * An element open at a cut: its qualified name and where its start tag is in the file.
+     */
+    private static final class Open {
+
+        final byte[] name;
+        final long tagStart;
+        final long tagEnd;
+
+        Open(byte[] name, long tagStart, long tagEnd) {
+            this.name = name;
+            this.tagStart = tagStart;
+            this.tagEnd = tagEnd;
+        }
+    }
+
+    private static final class Cut {
+
+        final long offset;
+        final List<Open> ancestors;
+
+        Cut(long offset, List<Open> ancestors) {
+            this.offset = offset;
+            this.ancestors = ancestors;
+        }
+    }
+
+    /**
+     * Tracks tags and element depth over a stream of bytes.
+     */
+    private abstract static class Scanner {
+
+        private static final byte[] PI_END = "?>".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] COMMENT_END = "-->".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] CDATA_END = "]]>".getBytes(StandardCharsets.US_ASCII);
+
+        private static final int TEXT = 0;
+        private static final int LESS_THAN = 1;
+        private static final int BANG = 2;
+        private static final int SKIP = 3;
+        private static final int NAME = 4;
+        private static final int ATTRIBUTES = 5;
+        private static final int QUOTED = 6;
+        private static final int SLASH = 7;
+        private static final int END_TAG = 8;
+
+        private int state = TEXT;
+        private long tagStart;
+        private byte[] terminator;
+        private int matched;
+        private byte quote;
+        private byte[] name = new byte[64];
+        private int nameLength;
+
+        /**
+         * the number of open elements
+         */
+        int depth;
+
+        /**
+         * the end of the XML declaration, 0 if there is none
+         */
+        long declarationEnd;
+
+        /**
+         * whether the document has a document type declaration
+         */
+        boolean unsupported;
+
+        /**
+         * @return false to stop scanning
+         */
+        final boolean next(byte b, long position) {
+            switch (state) {
+                case TEXT:
+                    if (b == '<') {
+                        state = LESS_THAN;
+                        tagStart = position;
+                    }
+                    return true;
+                case LESS_THAN:
+                    if (b == '?') {
+                        skipTo(PI_END);
+                    } else if (b == '!') {
+                        state = BANG;
+                    } else if (b == '/') {
+                        state = END_TAG;
+                    } else {
+                        state = NAME;
+                        name[0] = b;
+                        nameLength = 1;
+                    }
+                    return true;
+                case BANG:
+                    if (b == '-') {
+                        skipTo(COMMENT_END);
+                    } else if (b == '[') {
+                        skipTo(CDATA_END);
+                    } else {
+                        unsupported = true; // a document type declaration
+                        return false;
+                    }
+                    return true;
+                case SKIP:
+                    if (b == terminator[matched]) {
+                        if (++matched == terminator.length) {
+                            if (terminator == PI_END && depth == 0 && tagStart <= 3 && declarationEnd == 0) {
+                                declarationEnd = position + 1;
+                            }
+                            state = TEXT;
+                        }
+                    } else if (b != terminator[0]) {
+                        matched = 0;
+                    } else if (matched == 0 || terminator[matched - 1] != b) {
+                        matched = 1; // "]]]>" and "--->" still end with the last two of the repeated bytes
+                    }
+                    return true;
+                case NAME:
+                    if (b == '>') {
+                        return startTag(position, false);
+                    } else if (b == '/') {
+                        state = SLASH;
+                    } else if (isWhitespace(b)) {
+                        state = ATTRIBUTES;
+                    } else {
+                        if (nameLength == name.length) {
+                            name = Arrays.copyOf(name, nameLength * 2);
+                        }
+                        name[nameLength++] = b;
+                    }
+                    return true;
+                case ATTRIBUTES:
+                    if (b == '"' || b == '\'') {
+                        quote = b;
+                        state = QUOTED;
+                    } else if (b == '/') {
+                        state = SLASH;
+                    } else if (b == '>') {
+                        return startTag(position, false);
+                    }
+                    return true;
+                case QUOTED:
+                    if (b == quote) {
+                        state = ATTRIBUTES;
+                    }
+                    return true;
+                case SLASH:
+                    if (b == '>') {
+                        return startTag(position, true);
+                    }
+                    state = ATTRIBUTES;
+                    return true;
+                case END_TAG:
+                    if (b == '>') {
+                        state = TEXT;
+                        depth--;
+                        return endTag();
+                    }
+                    return true;
+                default:
+                    throw new IllegalStateException("Unknown scanner state " + state);
+            }
+        }
+
+        private void skipTo(byte[] end) {
+            state = SKIP;
+            terminator = end;
+            matched = 0;
+        }
+
+        private boolean startTag(long position, boolean empty) {
+            state = TEXT;
+            boolean result = startTag(Arrays.copyOf(name, nameLength), tagStart, position + 1, empty);
+            if (!empty) {
+                depth++;
+            }
+            return result;
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+        }
+
+        /**
+         * Called for each start tag, with depth still that of the element's parent.
+         *
+         * @return false to stop scanning
+         */
+        abstract boolean startTag(byte[] name, long tagStart, long tagEnd, boolean empty);
+
+        /**
+         * Called for each end tag, with depth already that of the element's parent.
+         *
+         * @return false to stop scanning
+         */
+        boolean endTag() {
+            return true;
+        }
+    }
+
+    /**
+     * Finds the record element in the beginning of the file: the configured one, or the shallowest element that
+     * repeats at the same depth.
+     */
+    private final class RecordDetector extends Scanner {
+
+        private final Map<Integer, Map<String, Integer>> counts = new HashMap<>();
+        int recordDepth;
+        byte[] recordName;
+
+        @Override
+        boolean startTag(byte[] name, long tagStart, long tagEnd, boolean empty) {
+            if (recordElement != null) {
+                String qualifiedName = new String(name, StandardCharsets.UTF_8);
+                if (qualifiedName.substring(qualifiedName.indexOf(':') + 1).equals(recordElement)) {
+                    recordDepth = depth;
+                    recordName = name;
+                    return false;
+                }
+                return true;
+            }
+            counts.computeIfAbsent(depth, key -> new HashMap<>()).merge(new String(name, StandardCharsets.ISO_8859_1), 1, Integer::sum);
+            return true;
+        }
+
+        /**
+         * @return true if a record element was found
+         */
+        boolean decide() {
+            if (recordName != null) {
+                return recordDepth > 0; // the root itself cannot be cut
+            }
+            for (int candidateDepth = 1; counts.containsKey(candidateDepth); candidateDepth++) {
+                Map.Entry<String, Integer> mostFrequent = Collections.max(counts.get(candidateDepth).entrySet(), Map.Entry.comparingByValue());
+                if (mostFrequent.getValue() >= DETECT_REPEATS) {
+                    recordDepth = candidateDepth;
+                    recordName = mostFrequent.getKey().getBytes(StandardCharsets.ISO_8859_1);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Cuts before the first record that starts at least shardBytes after the previous cut.
+     */
+    private static final class Cutter extends Scanner {
+
+        private final int recordDepth;
+        private final byte[] recordName;
+        private final long shardBytes;
+        private final List<Open> open = new ArrayList<>();
+        private long lastCut;
+        final List<Cut> cuts = new ArrayList<>();
+
+        Cutter(int recordDepth, byte[] recordName, long shardBytes) {
+            this.recordDepth = recordDepth;
+            this.recordName = recordName;
+            this.shardBytes = shardBytes;
+        }
+
+        @Override
+        boolean startTag(byte[] name, long tagStart, long tagEnd, boolean empty) {
+            if (depth == recordDepth && tagStart - lastCut >= shardBytes && Arrays.equals(name, recordName)) {
+                cuts.add(new Cut(tagStart, new ArrayList<>(open)));
+                lastCut = tagStart;
+            }
+            if (!empty) {
+                open.add(new Open(name, tagStart, tagEnd));
+            }
+            return true;
+        }
+
+        @Override
+        boolean endTag() {
+            if (open.isEmpty()) {
+                return false; // not well-formed
+            }
+            open.remove(open.size() - 1);
+            return true;
+        }
+    }
+
+    /**
+     * Reads a byte range of a file with positional reads.
+     */
+    private static final class RangeInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RangeInputStream(File file, long start, long end) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
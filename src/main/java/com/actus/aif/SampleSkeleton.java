@@ -0,0 +1,348 @@
+package com.actus.aif;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Reduces a sample to a skeleton that yields the same inferred schema: comments and processing instructions are
+ * dropped, and of a run of consecutive sibling elements that agree in structure and in what trang's datatype inference
+ * makes of their values ({@link ValueType}) only the first two are kept. Two occurrences are enough for the inference
+ * to see the repetition; the others add nothing to the schema.
+ * <p>
+ * Structure is compared bottom up by a 64 bit hash, so only the reduced tree is held in memory.
+ * <p>
+ * With a saturation threshold, an element path whose last occurrences have all had a structure seen before is
+ * considered saturated: further siblings continuing a run of that element are skipped as raw events, without building
+ * or hashing them. This trades exactness for speed on record oriented documents, where a run of thousands of records
+ * of the same shape would otherwise be read in full.
+ */
+final class SampleSkeleton {
+
+    /**
+     * consecutive structurally equal siblings that are kept
+     */
+    static final int KEPT_REPEATS = 2;
+
+    private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+
+    /**
+     * distinct structures remembered per element path; a path with more never saturates
+     */
+    private static final int MAX_SIGNATURES_PER_PATH = 256;
+
+    private final XMLInputFactory inputFactory = XMLInputFactory.newFactory();
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
+    private final int saturation;
+    private long skippedElements;
+
+    SampleSkeleton() {
+        this(0);
+    }
+
+    /**
+     * @param saturation the number of consecutive occurrences of an element path without new structure after which
+     *                   further siblings in the same run are skipped, 0 to read everything
+     */
+    SampleSkeleton(int saturation) {
+        this.saturation = saturation;
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+    }
+
+    static final class Node {
+
+        final QName name;
+        final List<QName> attributeNames = new ArrayList<>();
+        final List<String> attributeValues = new ArrayList<>();
+        /**
+         * child nodes and text, in document order
+         */
+        final List<Object> content = new ArrayList<>();
+        long signature;
+
+        Node(QName name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * What has been seen at one element path of the current document.
+     */
+    private static final class PathState {
+
+        private final Map<QName, PathState> children = new HashMap<>();
+        private final Set<Long> signatures = new HashSet<>();
+        private int unchanged;
+
+        PathState child(QName name) {
+            return children.computeIfAbsent(name, key -> new PathState());
+        }
+
+        void observe(long signature) {
+            if (signatures.contains(signature)) {
+                unchanged++;
+            } else {
+                unchanged = 0;
+                if (signatures.size() < MAX_SIGNATURES_PER_PATH) {
+                    signatures.add(signature);
+                }
+            }
+        }
+
+        boolean isSaturated(int threshold) {
+            return threshold > 0 && unchanged >= threshold && signatures.size() < MAX_SIGNATURES_PER_PATH;
+        }
+    }
+
+    /**
+     * @return the number of elements skipped by saturation so far
+     */
+    long skippedElements() {
+        return skippedElements;
+    }
+
+    /**
+     * @return the skeleton of the given sample as UTF-8 encoded XML
+     */
+    byte[] reduce(File file) throws IOException, XMLStreamException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return write(read(in));
+        }
+    }
+
+    /**
+     * @return the skeleton of the given document as UTF-8 encoded XML
+     */
+    byte[] reduce(InputStream in) throws XMLStreamException {
+        return write(read(in));
+    }
+
+    /**
+     * Joins the skeletons of the shards of one sample into the skeleton of the whole sample. A shard after the first
+     * starts with the ancestors of its first record, which continue the elements still open at the end of the shard
+     * before it: the content of each ancestor is appended to the element it continues, so the records of all shards
+     * end up in one parent next to whatever precedes and follows them. The joined tree is reduced again, as runs now
+     * meet across the cuts.
+     *
+     * @param shards the skeletons of the shards in document order
+     * @param depths per shard the number of ancestors its first record has, 0 for the first shard
+     * @return the skeleton of the whole sample as UTF-8 encoded XML
+     */
+    byte[] stitch(List<Node> shards, List<Integer> depths) throws XMLStreamException {
+        Node root = shards.get(0);
+        for (int i = 1; i < shards.size(); i++) {
+            if (depths.get(i) < 1 || !shards.get(i).name.equals(root.name)) {
+                throw new XMLStreamException("Shard " + i + " does not continue the document of the shards before it");
+            }
+            append(root, shards.get(i), depths.get(i));
+        }
+        return reduce(new ByteArrayInputStream(write(root)));
+    }
+
+    /**
+     * Appends the content of a shard's element to the element it continues, descending into the open ancestors.
+     *
+     * @param depth the number of open ancestors from this element down to the record parent, this one included
+     */
+    private static void append(Node into, Node from, int depth) {
+        int continued = 0;
+        if (depth > 1 && !from.content.isEmpty() && from.content.get(0) instanceof Node) {
+            Node open = (Node) from.content.get(0);
+            // the element left open by the cut, or the equal sibling the reduction kept in its place
+            Node last = lastChild(into);
+            if (last != null && last.name.equals(open.name)) {
+                append(last, open, depth - 1);
+                continued = 1;
+            }
+        }
+        into.content.addAll(from.content.subList(continued, from.content.size()));
+    }
+
+    private static Node lastChild(Node node) {
+        for (int i = node.content.size() - 1; i >= 0; i--) {
+            if (node.content.get(i) instanceof Node) {
+                return (Node) node.content.get(i);
+            }
+        }
+        return null;
+    }
+
+    Node read(InputStream in) throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+        try {
+            while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                // skip prolog
+            }
+            return readElement(reader, new PathState());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the element the reader is positioned on, up to and including its end tag.
+     */
+    private Node readElement(XMLStreamReader reader, PathState state) throws XMLStreamException {
+        Node node = new Node(reader.getName());
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            node.attributeNames.add(reader.getAttributeName(i));
+            node.attributeValues.add(reader.getAttributeValue(i));
+        }
+        StringBuilder text = new StringBuilder();
+        boolean hasChildren = false;
+        long previous = 0;
+        int repeats = 0;
+        QName runName = null;
+        int runLength = 0;
+        while (true) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (!isWhitespace(text)) {
+                        node.content.add(text.toString());
+                        repeats = 0; // text between siblings breaks the run
+                        runName = null;
+                    }
+                    text.setLength(0);
+                    hasChildren = true;
+                    QName childName = reader.getName();
+                    PathState childState = state.child(childName);
+                    if (childName.equals(runName)) {
+                        runLength++;
+                    } else {
+                        runName = childName;
+                        runLength = 1;
+                    }
+                    if (runLength > KEPT_REPEATS && childState.isSaturated(saturation)) {
+                        skipElement(reader);
+                        skippedElements++;
+                        break;
+                    }
+                    Node child = readElement(reader, childState);
+                    childState.observe(child.signature);
+                    if (repeats > 0 && child.signature == previous) {
+                        repeats++;
+                    } else {
+                        repeats = 1;
+                        previous = child.signature;
+                    }
+                    if (repeats <= KEPT_REPEATS) {
+                        node.content.add(child);
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    text.append(reader.getText());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (!hasChildren || !isWhitespace(text)) {
+                        if (text.length() > 0) {
+                            node.content.add(text.toString());
+                        }
+                    }
+                    node.signature = signature(node);
+                    return node;
+                default:
+                    // comments and processing instructions do not contribute to the schema
+            }
+        }
+    }
+
+    /**
+     * Skips the element the reader is positioned on, up to and including its end tag.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static boolean isWhitespace(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long signature(Node node) {
+        StringBuilder descriptor = new StringBuilder(node.name.toString()).append('[');
+        TreeSet<String> attributes = new TreeSet<>();
+        for (int i = 0; i < node.attributeNames.size(); i++) {
+            attributes.add(node.attributeNames.get(i) + "=" + ValueType.signature(node.attributeValues.get(i)));
+        }
+        attributes.forEach(attribute -> descriptor.append(attribute).append(' '));
+        descriptor.append("](");
+        for (Object content : node.content) {
+            if (content instanceof Node) {
+                descriptor.append(Long.toHexString(((Node) content).signature)).append(' ');
+            } else {
+                descriptor.append('#').append(ValueType.signature((String) content)).append(' ');
+            }
+        }
+        byte[] bytes = descriptor.append(')').toString().getBytes(StandardCharsets.UTF_8);
+        return HASH.hash(bytes, 0, bytes.length, 0);
+    }
+
+    byte[] write(Node root) throws XMLStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writeElement(root, writer);
+        writer.writeEndDocument();
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static void writeElement(Node node, XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartElement(node.name.getPrefix(), node.name.getLocalPart(), node.name.getNamespaceURI());
+        for (int i = 0; i < node.attributeNames.size(); i++) {
+            QName name = node.attributeNames.get(i);
+            if (name.getNamespaceURI().isEmpty()) {
+                writer.writeAttribute(name.getLocalPart(), node.attributeValues.get(i));
+            } else {
+                writer.writeAttribute(name.getPrefix(), name.getNamespaceURI(), name.getLocalPart(), node.attributeValues.get(i));
+            }
+        }
+        for (Object content : node.content) {
+            if (content instanceof Node) {
+                writeElement((Node) content, writer);
+            } else {
+                writer.writeCharacters((String) content);
+            }
+        }
+        writer.writeEndElement();
+    }
+}
@@ -0,0 +1,137 @@
+package com.actus.aif;
+
+import org.apache.maven.plugin.logging.Log;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that the samples are valid against the schema generated from them.
+ * <p>
+ * The schema is compiled once; the samples are validated concurrently, each thread with its own {@link Validator},
+ * and streamed through SAX so that no sample is held in memory.
+ */
+final class SampleValidator {
+
+    /**
+     * violations reported per sample, further ones are only counted
+     */
+    private static final int MAX_REPORTED_PER_SAMPLE = 10;
+
+    private final Schema schema;
+    private final EntityResolver entityResolver;
+    private final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+    private final ThreadLocal<Validator> validators;
+    private final ThreadLocal<XMLReader> readers;
+    private final Log log;
+
+    SampleValidator(File xsdFile, EntityResolver entityResolver, Log log) throws SAXException {
+        this.schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(xsdFile);
+        this.entityResolver = entityResolver;
+        this.log = log;
+        parserFactory.setNamespaceAware(true);
+        validators = ThreadLocal.withInitial(schema::newValidator);
+        readers = ThreadLocal.withInitial(() -> {
+            try {
+                XMLReader reader = parserFactory.newSAXParser().getXMLReader();
+                reader.setEntityResolver(this.entityResolver);
+                return reader;
+            } catch (ParserConfigurationException | SAXException e) {
+                throw new IllegalStateException("Cannot create XML parser", e);
+            }
+        });
+    }
+
+    /**
+     * Validates the samples on the given number of threads and logs every violation with sample, line and column.
+     *
+     * @return the number of invalid samples
+     */
+    int validate(List<Sample> samples, int threads) throws InterruptedException {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        int invalid = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, samples.size())));
+        try {
+            CompletionService<List<String>> completed = new ExecutorCompletionService<>(executor);
+            for (Sample sample : samples) {
+                completed.submit(() -> validate(sample));
+            }
+            for (int i = 0; i < samples.size(); i++) {
+                List<String> violations;
+                try {
+                    violations = completed.take().get();
+                } catch (ExecutionException e) {
+                    violations = List.of("cannot be validated: " + e.getCause().getMessage());
+                }
+                if (!violations.isEmpty()) {
+                    invalid++;
+                    violations.forEach(log::error);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return invalid;
+    }
+
+    private List<String> validate(Sample sample) throws IOException {
+        SampleEvent event = SampleEvent.start();
+        List<String> violations = new ArrayList<>();
+        int[] count = new int[1];
+        Validator validator = validators.get();
+        validator.setErrorHandler(new ErrorHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+            }
+
+            @Override
+            public void error(SAXParseException e) {
+                if (count[0]++ < MAX_REPORTED_PER_SAMPLE) {
+                    violations.add(sample.source + ":" + e.getLineNumber() + ":" + e.getColumnNumber() + ": " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void fatalError(SAXParseException e) throws SAXException {
+                error(e);
+                throw e;
+            }
+        });
+        try {
+            validator.validate(new SAXSource(readers.get(), new InputSource(sample.file.toURI().toString())));
+        } catch (SAXParseException e) {
+            // already reported by the error handler
+        } catch (SAXException e) {
+            violations.add(sample.source + ": " + e.getMessage());
+        } finally {
+            validator.reset();
+            event.finish("validate", sample.source, sample.size);
+        }
+        if (count[0] > MAX_REPORTED_PER_SAMPLE) {
+            violations.add(sample.source + ": " + (count[0] - MAX_REPORTED_PER_SAMPLE) + " further violations");
+        }
+        return violations;
+    }
+}
@@ -0,0 +1,236 @@
+package com.actus.aif;
+
+import io.milton.common.Path;
+import io.milton.http.exceptions.NotFoundException;
+import io.milton.httpclient.Host;
+import io.milton.httpclient.HttpResult;
+import io.milton.httpclient.IfMatchCheck;
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A build cache for generated schemas shared between machines, in a webdav folder or a local (e.g. network mounted)
+ * directory. Entries are zip archives keyed by a fingerprint of the samples and the configuration, so a build whose
+ * samples have not changed since another machine generated the schema downloads that schema instead of the samples.
+ * <p>
+ * The key covers every setting that changes the generated schema, so two entries for the same key are
+ * interchangeable. An entry is published only if it does not exist yet (If-None-Match: * on webdav, a hard link on
+ * disk), so concurrent builds of the same inputs do not overwrite each other. On a file system without hard links the
+ * entry is renamed into place instead, which may replace an entry published meanwhile.
+ */
+final class SchemaCache {
+
+    /**
+     * changes whenever the output for the same inputs may change, e.g. with a new inference
+     */
+    private static final String CACHE_VERSION = "xmlschemagenerator-schema-cache-3";
+
+    private final Host host;
+    private final String webdavFolder;
+    private final java.nio.file.Path directory;
+    private final Log log;
+
+    private SchemaCache(Host host, String webdavFolder, java.nio.file.Path directory, Log log) {
+        this.host = host;
+        this.webdavFolder = webdavFolder;
+        this.directory = directory;
+        this.log = log;
+    }
+
+    static SchemaCache webdav(Host host, String folder, Log log) {
+        return new SchemaCache(host, folder, null, log);
+    }
+
+    static SchemaCache directory(java.nio.file.Path directory, Log log) {
+        return new SchemaCache(null, null, directory, log);
+    }
+
+    /**
+     * @param settings the configuration that affects the generated schema, one {@code name=value} per setting
+     * @return the cache key for the given samples, settings and outputs, or null if a webdav sample has no ETag and so
+     * cannot be recognized
+     */
+    static String fingerprint(List<WebdavResource> resources, List<String> localFilePaths, List<String> schemaPaths,
+                              List<String> settings) throws IOException {
+        List<String> inputs = new ArrayList<>();
+        for (WebdavResource resource : resources) {
+            if (resource == null) {
+                continue;
+            }
+            if (resource.etag == null) {
+                return null;
+            }
+            // the path relative to the webdav root, so that mirrors and clients with another root agree
+            inputs.add("R " + resource.path + " " + resource.etag + " " + resource.contentLength);
+        }
+        if (localFilePaths != null) {
+            for (String localFilePath : localFilePaths) {
+                File file = new File(localFilePath);
+                inputs.add("L " + (file.isFile() ? Long.toHexString(SampleDeduplicator.contentHash(file)) + "/" + file.length() : "missing"));
+            }
+        }
+        inputs.sort(Comparator.naturalOrder());
+        for (String schemaPath : schemaPaths) {
+            inputs.add("O " + Paths.get(schemaPath).getFileName());
+        }
+        for (String setting : settings) {
+            inputs.add("S " + setting);
+        }
+
+        XXHashFactory factory = XXHashFactory.fastestInstance();
+        try (StreamingXXHash64 low = factory.newStreamingHash64(0); StreamingXXHash64 high = factory.newStreamingHash64(0x5bd1e995)) {
+            inputs.add(0, CACHE_VERSION);
+            for (String input : inputs) {
+                byte[] bytes = (input + "\n").getBytes(StandardCharsets.UTF_8);
+                low.update(bytes, 0, bytes.length);
+                high.update(bytes, 0, bytes.length);
+            }
+            return String.format("%016x%016x", high.getValue(), low.getValue());
+        }
+    }
+
+    /**
+     * Writes the cached schema for the key to the schema paths.
+     *
+     * @return whether there was an entry for the key
+     */
+    boolean restore(String key, List<String> schemaPaths) {
+        java.nio.file.Path archive = null;
+        try {
+            if (directory != null) {
+                archive = directory.resolve(key + ".zip");
+                if (!Files.isRegularFile(archive)) {
+                    return false;
+                }
+                unpack(archive, schemaPaths);
+            } else {
+                archive = Files.createTempFile(key, ".zip");
+                try {
+                    host.doGet(Path.path(webdavFolder).child(key + ".zip"), archive.toFile(), null, null);
+                } catch (NotFoundException e) {
+                    return false;
+                }
+                unpack(archive, schemaPaths);
+            }
+            return true;
+        } catch (Exception e) {
+            log.warn("Could not read schema cache entry " + key + ", generating the schema: " + e.getMessage());
+            return false;
+        } finally {
+            if (directory == null && archive != null) {
+                archive.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * Stores the schema files generated into the staging folder, one sub folder per schema path, under the key.
+     */
+    void publish(String key, java.nio.file.Path staging) {
+        java.nio.file.Path archive = null;
+        try {
+            archive = Files.createTempFile(key, ".zip");
+            pack(staging, archive);
+            if (directory != null) {
+                Files.createDirectories(directory);
+                java.nio.file.Path entry = directory.resolve(key + ".zip");
+                java.nio.file.Path tmp = Files.createTempFile(directory, key, ".tmp");
+                Files.copy(archive, tmp, StandardCopyOption.REPLACE_EXISTING);
+                try {
+                    Files.createLink(entry, tmp); // unlike a rename, fails if the entry exists
+                } catch (FileAlreadyExistsException e) {
+                    log.info("Schema cache entry " + key + " was published by another build meanwhile");
+                    return;
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            } else {
+                HttpResult result = host.doPut(Path.path(webdavFolder).child(key + ".zip"), archive.toFile(),
+                        new IfMatchCheck(null), null);
+                if (result.getStatusCode() == 412) {
+                    log.info("Schema cache entry " + key + " was published by another build meanwhile");
+                    return;
+                }
+                if (result.getStatusCode() < 200 || result.getStatusCode() >= 300) {
+                    throw new IOException("PUT returned " + result.getStatusCode());
+                }
+            }
+            log.info("Published schema to the build cache: " + key);
+        } catch (Exception e) {
+            log.warn("Could not publish schema cache entry " + key + ": " + e.getMessage());
+        } finally {
+            if (archive != null) {
+                archive.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * Copies the schema files generated into the staging folder to the folders of the schema paths.
+     */
+    static void install(java.nio.file.Path staging, List<String> schemaPaths) throws IOException {
+        for (int i = 0; i < schemaPaths.size(); i++) {
+            java.nio.file.Path target = Paths.get(schemaPaths.get(i)).toAbsolutePath();
+            Files.createDirectories(target.getParent());
+            try (Stream<java.nio.file.Path> files = Files.list(staging.resolve(Integer.toString(i)))) {
+                for (java.nio.file.Path file : files.collect(Collectors.toList())) {
+                    Files.copy(file, target.resolveSibling(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private static void pack(java.nio.file.Path staging, java.nio.file.Path archive) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive));
+             Stream<java.nio.file.Path> files = Files.walk(staging)) {
+            for (java.nio.file.Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                zip.putNextEntry(new ZipEntry(staging.relativize(file).toString().replace(File.separatorChar, '/')));
+                Files.copy(file, zip);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Extracts an archive written by {@link #pack}: entry "i/name" goes next to the i-th schema path.
+     */
+    private static void unpack(java.nio.file.Path archive, List<String> schemaPaths) throws IOException {
+        try (InputStream in = Files.newInputStream(archive); ZipInputStream zip = new ZipInputStream(in)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String[] parts = entry.getName().split("/");
+                int index = Integer.parseInt(parts[0]);
+                if (parts.length != 2 || index < 0 || index >= schemaPaths.size() || parts[1].isEmpty() || parts[1].equals("..")) {
+                    throw new IOException("Unexpected entry " + entry.getName());
+                }
+                java.nio.file.Path target = Paths.get(schemaPaths.get(index)).toAbsolutePath();
+                Files.createDirectories(target.getParent());
+                try (OutputStream out = Files.newOutputStream(target.resolveSibling(parts[1]))) {
+                    zip.transferTo(out);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.actus.aif;
+
+import com.thaiopensource.relaxng.edit.SchemaCollection;
+import com.thaiopensource.relaxng.input.InputFailedException;
+import com.thaiopensource.relaxng.input.xml.XmlInputFormat;
+import com.thaiopensource.relaxng.output.LocalOutputDirectory;
+import com.thaiopensource.relaxng.output.OutputDirectory;
+import com.thaiopensource.relaxng.output.OutputFailedException;
+import com.thaiopensource.relaxng.output.OutputFormat;
+import com.thaiopensource.relaxng.output.dtd.DtdOutputFormat;
+import com.thaiopensource.relaxng.output.rnc.RncOutputFormat;
+import com.thaiopensource.relaxng.output.rng.RngOutputFormat;
+import com.thaiopensource.relaxng.output.xsd.XsdOutputFormat;
+import com.thaiopensource.relaxng.translate.util.InvalidParamsException;
+import com.thaiopensource.resolver.BasicResolver;
+import com.thaiopensource.resolver.Resolver;
+import com.thaiopensource.resolver.xml.sax.SAX;
+import com.thaiopensource.util.UriOrFile;
+import org.apache.maven.plugin.logging.Log;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs the trang XML inference once and writes the inferred schema in any of the output formats trang supports:
+ * W3C XML Schema (.xsd), RELAX NG (.rng), RELAX NG compact syntax (.rnc) and DTD (.dtd). The output format is chosen
+ * by the file extension of the output path, the same way the trang command line does it.
+ */
+final class SchemaGenerator {
+
+    private static final String[] NO_PARAMS = new String[0];
+    private static final String ENCODING = "UTF-8";
+    private static final int LINE_LENGTH = 72;
+    private static final int INDENT = 2;
+
+    private final ErrorHandler errorHandler;
+    private final Resolver resolver;
+
+    SchemaGenerator(Log log) {
+        this(log, null);
+    }
+
+    /**
+     * @param entityResolver resolves the external entities and DTDs of the samples, null to fetch them directly
+     */
+    SchemaGenerator(Log log, EntityResolver entityResolver) {
+        this.errorHandler = new LogErrorHandler(log);
+        this.resolver = entityResolver == null ? BasicResolver.getInstance() : SAX.createResolver(entityResolver, true);
+    }
+
+    /**
+     * Parses all samples and infers the structural model from them.
+     */
+    SchemaCollection infer(List<String> filePaths) throws IOException, SAXException, InputFailedException, InvalidParamsException {
+        String[] uris = filePaths.stream().map(UriOrFile::toUri).toArray(String[]::new);
+        return new XmlInputFormat().load(uris, NO_PARAMS, "xsd", errorHandler, resolver);
+    }
+
+    /**
+     * Serialises an inferred model to the given path, in the format given by its extension.
+     */
+    void write(SchemaCollection schema, String outputPath) throws IOException, SAXException, OutputFailedException, InvalidParamsException {
+        String extension = extension(outputPath);
+        File outputFile = new File(outputPath).getAbsoluteFile();
+        if (!outputFile.getParentFile().isDirectory() && !outputFile.getParentFile().mkdirs()) {
+            throw new IOException("Cannot create " + outputFile.getParentFile());
+        }
+        OutputDirectory od = new LocalOutputDirectory(schema.getMainUri(), outputFile, "." + extension, ENCODING, LINE_LENGTH, INDENT);
+        outputFormat(extension).output(schema, od, NO_PARAMS, "xml", errorHandler);
+    }
+
+    /**
+     * @throws IllegalArgumentException if trang cannot write the format of the given path
+     */
+    static void checkSupported(String outputPath) {
+        outputFormat(extension(outputPath));
+    }
+
+    private static OutputFormat outputFormat(String extension) {
+        switch (extension) {
+            case "xsd":
+                return new XsdOutputFormat();
+            case "rng":
+                return new RngOutputFormat();
+            case "rnc":
+                return new RncOutputFormat();
+            case "dtd":
+                return new DtdOutputFormat();
+            default:
+                throw new IllegalArgumentException("Unsupported schema format '" + extension
+                        + "', the output path must end in .xsd, .rng, .rnc or .dtd");
+        }
+    }
+
+    private static String extension(String outputPath) {
+        int dot = outputPath.lastIndexOf('.');
+        return dot < 0 ? "" : outputPath.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Reports parser and trang diagnostics through the maven log instead of standard error.
+     */
+    static final class LogErrorHandler implements ErrorHandler {
+
+        private final Log log;
+
+        LogErrorHandler(Log log) {
+            this.log = log;
+        }
+
+        @Override
+        public void warning(SAXParseException e) {
+            log.warn(format(e));
+        }
+
+        @Override
+        public void error(SAXParseException e) {
+            log.error(format(e));
+        }
+
+        @Override
+        public void fatalError(SAXParseException e) throws SAXException {
+            log.error(format(e));
+            throw e;
+        }
+
+        private static String format(SAXParseException e) {
+            return (e.getSystemId() != null ? e.getSystemId() : "") + ":" + e.getLineNumber() + ":" + e.getColumnNumber() + ": " + e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.actus.aif;
+
+import org.apache.maven.plugin.logging.Log;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Groups samples into partitions that get a schema of their own, either by the qualified name of their root element
+ * or by the folder they came from.
+ */
+final class SchemaPartitions {
+
+    static final String BY_ROOT_ELEMENT = "rootElement";
+    static final String BY_FOLDER = "folder";
+
+    /**
+     * partition of samples whose root element could not be read
+     */
+    private static final String UNREADABLE = "unreadable";
+
+    private final XMLInputFactory inputFactory = XMLInputFactory.newFactory();
+    private final String partitionBy;
+    private final Log log;
+
+    SchemaPartitions(String partitionBy, Log log) {
+        if (!BY_ROOT_ELEMENT.equals(partitionBy) && !BY_FOLDER.equals(partitionBy)) {
+            throw new IllegalArgumentException("Unsupported partitionBy '" + partitionBy + "', use '"
+                    + BY_ROOT_ELEMENT + "' or '" + BY_FOLDER + "'");
+        }
+        this.partitionBy = partitionBy;
+        this.log = log;
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    /**
+     * @return the samples grouped by partition key, in key order
+     */
+    Map<String, List<Sample>> group(List<Sample> samples) {
+        Map<String, List<Sample>> partitions = new TreeMap<>();
+        for (Sample sample : samples) {
+            partitions.computeIfAbsent(key(sample), key -> new ArrayList<>()).add(sample);
+        }
+        return partitions;
+    }
+
+    private String key(Sample sample) {
+        if (BY_FOLDER.equals(partitionBy)) {
+            int slash = Math.max(sample.source.lastIndexOf('/'), sample.source.lastIndexOf(java.io.File.separatorChar));
+            return slash < 0 ? "" : sample.source.substring(0, slash + 1);
+        }
+        try {
+            return rootElement(sample).toString();
+        } catch (IOException | XMLStreamException e) {
+            log.warn("Cannot read the root element of " + sample.source + ": " + e.getMessage());
+            return UNREADABLE;
+        }
+    }
+
+    private QName rootElement(Sample sample) throws IOException, XMLStreamException {
+        try (InputStream in = new FileInputStream(sample.file)) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                // nextTag() would reject a document type declaration, comments and processing instructions
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamReader.START_ELEMENT) {
+                        return reader.getName();
+                    }
+                }
+                throw new XMLStreamException("No root element");
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * @return a distinct file system friendly name for every partition key
+     */
+    static Map<String, String> directoryNames(Iterable<String> keys) {
+        Map<String, String> names = new TreeMap<>();
+        Set<String> used = new HashSet<>();
+        for (String key : keys) {
+            String base = key.startsWith("{") ? key.substring(key.indexOf('}') + 1) : key;
+            base = base.replaceAll("[^A-Za-z0-9._-]+", "_").replaceAll("^_+|_+$", "");
+            if (base.isEmpty()) {
+                base = "default";
+            }
+            String name = base;
+            for (int i = 2; !used.add(name); i++) {
+                name = base + "-" + i;
+            }
+            names.put(key, name);
+        }
+        return names;
+    }
+
+    /**
+     * Writes an index that lists, per partition, the number of samples and the schema files generated for it.
+     */
+    void writeIndex(Path indexFile, Map<String, List<Sample>> partitions, Map<String, List<String>> schemaPaths) throws IOException {
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        try (OutputStream out = Files.newOutputStream(indexFile)) {
+            XMLStreamWriter writer = XMLOutputFactory.newFactory().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("partitions");
+            writer.writeAttribute("by", partitionBy);
+            for (Map.Entry<String, List<Sample>> partition : partitions.entrySet()) {
+                writer.writeStartElement("partition");
+                writer.writeAttribute("key", partition.getKey());
+                writer.writeAttribute("samples", Integer.toString(partition.getValue().size()));
+                for (String schemaPath : schemaPaths.get(partition.getKey())) {
+                    writer.writeEmptyElement("schema");
+                    writer.writeAttribute("path", schemaPath);
+                }
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot write " + indexFile, e);
+        }
+    }
+}
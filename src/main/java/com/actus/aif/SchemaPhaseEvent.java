@@ -0,0 +1,56 @@
+package com.actus.aif;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.util.List;
+
+/**
+ * Flight Recorder event for one stage of a schema build, e.g. collecting the samples or inferring the schema. The
+ * fields are only filled in when the event is recorded.
+ */
+@Name("com.actus.aif.SchemaPhase")
+@Label("Schema Build Phase")
+@Category({"XML Schema Generator"})
+final class SchemaPhaseEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Samples")
+    int samples;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    static SchemaPhaseEvent start() {
+        SchemaPhaseEvent event = new SchemaPhaseEvent();
+        event.begin();
+        return event;
+    }
+
+    void finish(String phase, List<Sample> samples) {
+        end();
+        if (shouldCommit()) {
+            record(phase, samples.size(), samples.stream().mapToLong(sample -> sample.size).sum());
+        }
+    }
+
+    void finish(String phase, int samples) {
+        end();
+        if (shouldCommit()) {
+            record(phase, samples, 0);
+        }
+    }
+
+    private void record(String phase, int samples, long bytes) {
+        this.phase = phase;
+        this.samples = samples;
+        this.bytes = bytes;
+        commit();
+    }
+}
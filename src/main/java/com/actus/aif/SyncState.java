@@ -0,0 +1,116 @@
+package com.actus.aif;
+
+import io.milton.common.Path;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The sync-collection tokens of the webdav folders together with the members each token stands for, persisted
+ * between builds so that a later build only needs to ask for what changed.
+ * <p>
+ * Stored as a tab separated text file; a file written by a different version is ignored.
+ */
+final class SyncState {
+
+    private static final String HEADER = "# xmlschemagenerator sync state v1";
+
+    static final class FolderState {
+
+        final String syncToken;
+
+        /**
+         * the members of the folder keyed by href
+         */
+        final Map<String, WebdavResource> members;
+
+        FolderState(String syncToken, Map<String, WebdavResource> members) {
+            this.syncToken = syncToken;
+            this.members = members;
+        }
+    }
+
+    private final java.nio.file.Path file;
+    private final Map<String, FolderState> folders = new HashMap<>();
+
+    private SyncState(java.nio.file.Path file) {
+        this.file = file;
+    }
+
+    static SyncState empty(java.nio.file.Path file) {
+        return new SyncState(file);
+    }
+
+    static SyncState load(java.nio.file.Path file) throws IOException {
+        SyncState state = new SyncState(file);
+        if (!Files.isRegularFile(file)) {
+            return state;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return state;
+            }
+            Map<String, WebdavResource> members = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals("F") && fields.length == 3) {
+                    members = new LinkedHashMap<>();
+                    state.folders.put(fields[1], new FolderState(fields[2], members));
+                } else if (fields[0].equals("R") && fields.length == 6 && members != null) {
+                    Path path = Path.path(fields[5]);
+                    members.put(fields[1], new WebdavResource(path.getName(), fields[1], path, emptyToNull(fields[2]),
+                            fields[3].isEmpty() ? null : Long.valueOf(fields[3]), emptyToNull(fields[4])));
+                }
+            }
+        }
+        return state;
+    }
+
+    FolderState get(String folder) {
+        return folders.get(folder);
+    }
+
+    void put(String folder, FolderState state) {
+        folders.put(folder, state);
+    }
+
+    void remove(String folder) {
+        folders.remove(folder);
+    }
+
+    void save() throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        java.nio.file.Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, FolderState> folder : folders.entrySet()) {
+                writer.write("F\t" + clean(folder.getKey()) + "\t" + clean(folder.getValue().syncToken));
+                writer.newLine();
+                for (WebdavResource member : folder.getValue().members.values()) {
+                    writer.write("R\t" + clean(member.href) + "\t" + clean(member.etag) + "\t"
+                            + (member.contentLength != null ? member.contentLength : "") + "\t"
+                            + clean(member.contentType) + "\t" + clean(member.path.toString()));
+                    writer.newLine();
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
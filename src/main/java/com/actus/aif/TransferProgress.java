@@ -0,0 +1,63 @@
+package com.actus.aif;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of all concurrent downloads, summarized in one periodic log line instead of one line per transfer and
+ * buffer. Transfers only add to striped counters, so reporting progress costs them no lock and no console output.
+ */
+final class TransferProgress {
+
+    private final Log log;
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder filesTotal = new LongAdder();
+    private final LongAdder filesDone = new LongAdder();
+    private final LongAdder bytesExpected = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+
+    TransferProgress(Log log) {
+        this.log = log;
+    }
+
+    void fileQueued(long expectedBytes) {
+        filesTotal.increment();
+        bytesExpected.add(expectedBytes);
+    }
+
+    void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Counts a file as finished, whether it was fetched, failed or skipped.
+     */
+    void fileDone() {
+        filesDone.increment();
+    }
+
+    /**
+     * Logs files done of total, bytes read, rate and the estimated time left.
+     */
+    void report() {
+        long done = filesDone.sum();
+        long total = filesTotal.sum();
+        if (total == 0) {
+            return;
+        }
+        long read = bytesRead.sum();
+        double seconds = Math.max(1e-3, (System.nanoTime() - startNanos) / 1e9);
+        double rate = read / seconds;
+        long remaining = Math.max(0, bytesExpected.sum() - read);
+        String eta = rate > 0 && done < total ? ", ETA " + Math.round(remaining / rate) + " s" : "";
+        log.info(String.format(Locale.ROOT, "Downloaded %d/%d files, %s of ~%s at %s/s%s",
+                done, total, megabytes(read), megabytes(bytesExpected.sum()), megabytes((long) rate), eta));
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
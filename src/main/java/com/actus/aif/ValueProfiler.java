@@ -0,0 +1,169 @@
+package com.actus.aif;
+
+import org.apache.maven.plugin.logging.Log;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Collects a {@link ValueSketch} per element and attribute path of the samples, e.g. {@code /order/item/@sku}.
+ * Elements are profiled by their text if they have no child elements. Memory is fixed per path, however many samples
+ * and values there are.
+ */
+final class ValueProfiler {
+
+    private final XMLInputFactory inputFactory = XMLInputFactory.newFactory();
+    private final Log log;
+
+    ValueProfiler(Log log) {
+        this.log = log;
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * Profiles the samples on the given number of threads, each sample on its own, and merges the sketches.
+     */
+    Map<String, ValueSketch> profile(List<Sample> samples, int threads) throws InterruptedException {
+        Map<String, ValueSketch> profile = new TreeMap<>();
+        if (samples.isEmpty()) {
+            return profile;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, samples.size())));
+        try {
+            CompletionService<Map<String, ValueSketch>> completed = new ExecutorCompletionService<>(executor);
+            for (Sample sample : samples) {
+                completed.submit(() -> profile(sample));
+            }
+            for (int i = 0; i < samples.size(); i++) {
+                try {
+                    merge(profile, completed.take().get());
+                } catch (ExecutionException e) {
+                    log.warn("Could not profile a sample: " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return profile;
+    }
+
+    static void merge(Map<String, ValueSketch> into, Map<String, ValueSketch> from) {
+        from.forEach((path, sketch) -> into.merge(path, sketch, (a, b) -> {
+            a.merge(b);
+            return a;
+        }));
+    }
+
+    private Map<String, ValueSketch> profile(Sample sample) throws IOException, XMLStreamException {
+        SampleEvent event = SampleEvent.start();
+        Map<String, ValueSketch> profile = new HashMap<>();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(sample.file))) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            try {
+                Deque<String> paths = new ArrayDeque<>();
+                Deque<Boolean> hasChildren = new ArrayDeque<>();
+                StringBuilder text = new StringBuilder();
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            if (!hasChildren.isEmpty()) {
+                                hasChildren.pop();
+                                hasChildren.push(true);
+                            }
+                            String path = (paths.isEmpty() ? "" : paths.peek()) + "/" + reader.getName();
+                            paths.push(path);
+                            hasChildren.push(false);
+                            text.setLength(0);
+                            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                                profile.computeIfAbsent(path + "/@" + reader.getAttributeName(i), key -> new ValueSketch())
+                                        .add(reader.getAttributeValue(i));
+                            }
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            text.append(reader.getText());
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            String elementPath = paths.pop();
+                            if (!hasChildren.pop()) {
+                                profile.computeIfAbsent(elementPath, key -> new ValueSketch()).add(text.toString());
+                            }
+                            text.setLength(0);
+                            break;
+                        default:
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        event.finish("profile", sample.source, sample.size);
+        return profile;
+    }
+
+    /**
+     * Writes the profile as XML, one node element per path with the suggested datatype and enumeration.
+     */
+    static void writeReport(Path reportFile, Map<String, ValueSketch> profile) throws IOException {
+        Files.createDirectories(reportFile.toAbsolutePath().getParent());
+        try (OutputStream out = Files.newOutputStream(reportFile)) {
+            XMLStreamWriter writer = XMLOutputFactory.newFactory().createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeStartElement("valueProfile");
+            for (Map.Entry<String, ValueSketch> node : profile.entrySet()) {
+                ValueSketch sketch = node.getValue();
+                writer.writeStartElement("node");
+                writer.writeAttribute("path", node.getKey());
+                writer.writeAttribute("values", Long.toString(sketch.count));
+                writer.writeAttribute("distinct", Long.toString(sketch.distinctCount()));
+                writer.writeAttribute("type", "xs:" + sketch.datatype());
+                writer.writeAttribute("minLength", Integer.toString(sketch.count == 0 ? 0 : sketch.minLength));
+                writer.writeAttribute("maxLength", Integer.toString(sketch.maxLength));
+                if (!Double.isNaN(sketch.minValue)) {
+                    writer.writeAttribute("minValue", number(sketch.minValue));
+                    writer.writeAttribute("maxValue", number(sketch.maxValue));
+                }
+                if (sketch.isEnumeration()) {
+                    for (String value : sketch.enumeration) {
+                        writer.writeEmptyElement("enumeration");
+                        writer.writeAttribute("value", value);
+                    }
+                }
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot write " + reportFile, e);
+        }
+    }
+
+    private static String number(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+    }
+}
@@ -0,0 +1,258 @@
+package com.actus.aif;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeSet;
+
+/**
+ * A fixed size summary of the values of one element or attribute: which datatypes all of them fit, their lengths and
+ * numeric range, an estimate of the number of distinct values and, as long as there are only a few, the distinct
+ * values themselves as enumeration candidates.
+ * <p>
+ * Sketches of the same node can be merged in any order, so samples may be profiled on different threads and their
+ * sketches combined afterwards. The distinct count is a HyperLogLog estimate with 2^{@value #HLL_PRECISION}
+ * registers, about 3% error.
+ */
+final class ValueSketch {
+
+    /**
+     * the datatype classes of {@link ValueType}, as opposed to the white space flags
+     */
+    private static final int DATATYPES = ValueType.BOOLEAN | ValueType.INTEGER | ValueType.DECIMAL | ValueType.DOUBLE
+            | ValueType.DATE | ValueType.DATE_TIME | ValueType.TIME | ValueType.DURATION | ValueType.NCNAME
+            | ValueType.QNAME | ValueType.NMTOKEN | ValueType.URI | ValueType.HEX_BINARY | ValueType.BASE64_BINARY;
+
+    private static final int HLL_PRECISION = 10;
+    private static final int HLL_REGISTERS = 1 << HLL_PRECISION;
+
+    /**
+     * distinct values kept exactly before a node stops being an enumeration candidate
+     */
+    static final int MAX_ENUMERATION_VALUES = 16;
+
+    /**
+     * longer values are never enumeration candidates
+     */
+    private static final int MAX_ENUMERATION_VALUE_LENGTH = 64;
+
+    private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+
+    long count;
+
+    /**
+     * the datatype classes every non-empty value belongs to
+     */
+    int datatypes = DATATYPES;
+
+    /**
+     * the white space flags seen on any value
+     */
+    int flags;
+
+    int minLength = Integer.MAX_VALUE;
+    int maxLength;
+
+    /**
+     * the range of the values that are decimals, NaN if there were none
+     */
+    double minValue = Double.NaN;
+    double maxValue = Double.NaN;
+
+    private final byte[] registers = new byte[HLL_REGISTERS];
+
+    /**
+     * the distinct trimmed values, or null once there were too many or too long ones
+     */
+    TreeSet<String> enumeration = new TreeSet<>();
+
+    void add(String value) {
+        count++;
+        int type = ValueType.classify(value);
+        flags |= type & ~DATATYPES;
+        if ((type & ValueType.EMPTY) == 0) {
+            datatypes &= type;
+        }
+        minLength = Math.min(minLength, value.length());
+        maxLength = Math.max(maxLength, value.length());
+
+        String trimmed = value.trim();
+        if ((type & ValueType.DECIMAL) != 0) {
+            double number = Double.parseDouble(trimmed);
+            minValue = Double.isNaN(minValue) ? number : Math.min(minValue, number);
+            maxValue = Double.isNaN(maxValue) ? number : Math.max(maxValue, number);
+        }
+
+        byte[] bytes = trimmed.getBytes(StandardCharsets.UTF_8);
+        long hash = HASH.hash(bytes, 0, bytes.length, 0);
+        int register = (int) (hash >>> (64 - HLL_PRECISION));
+        byte rank = (byte) (Long.numberOfLeadingZeros(hash << HLL_PRECISION | (1L << (HLL_PRECISION - 1))) + 1);
+        if (rank > registers[register]) {
+            registers[register] = rank;
+        }
+
+        if (enumeration != null) {
+            if (trimmed.length() > MAX_ENUMERATION_VALUE_LENGTH) {
+                enumeration = null;
+            } else {
+                enumeration.add(trimmed);
+                if (enumeration.size() > MAX_ENUMERATION_VALUES) {
+                    enumeration = null;
+                }
+            }
+        }
+    }
+
+    void merge(ValueSketch other) {
+        count += other.count;
+        datatypes &= other.datatypes;
+        flags |= other.flags;
+        minLength = Math.min(minLength, other.minLength);
+        maxLength = Math.max(maxLength, other.maxLength);
+        if (!Double.isNaN(other.minValue)) {
+            minValue = Double.isNaN(minValue) ? other.minValue : Math.min(minValue, other.minValue);
+            maxValue = Double.isNaN(maxValue) ? other.maxValue : Math.max(maxValue, other.maxValue);
+        }
+        for (int i = 0; i < HLL_REGISTERS; i++) {
+            registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+        }
+        if (enumeration != null) {
+            if (other.enumeration == null) {
+                enumeration = null;
+            } else {
+                enumeration.addAll(other.enumeration);
+                if (enumeration.size() > MAX_ENUMERATION_VALUES) {
+                    enumeration = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values; exact while the values are still enumerated
+     */
+    long distinctCount() {
+        if (enumeration != null) {
+            return enumeration.size();
+        }
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += Math.pow(2, -register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = 0.7213 / (1 + 1.079 / HLL_REGISTERS);
+        double estimate = alpha * HLL_REGISTERS * HLL_REGISTERS / sum;
+        if (estimate <= 2.5 * HLL_REGISTERS && zeros > 0) {
+            estimate = HLL_REGISTERS * Math.log((double) HLL_REGISTERS / zeros); // linear counting for small sets
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return the most specific XML Schema datatype all values fit, e.g. "int" or "date"
+     */
+    String datatype() {
+        if ((flags & ValueType.EMPTY) != 0 || count == 0) {
+            return (flags & (ValueType.UNTRIMMED | ValueType.LINE_BREAKS)) != 0 ? "string" : "token";
+        }
+        if ((datatypes & ValueType.BOOLEAN) != 0 && (datatypes & ValueType.INTEGER) == 0) {
+            return "boolean";
+        }
+        if ((datatypes & ValueType.INTEGER) != 0) {
+            if (minValue >= Integer.MIN_VALUE && maxValue <= Integer.MAX_VALUE) {
+                return "int";
+            }
+            return minValue >= Long.MIN_VALUE && maxValue <= Long.MAX_VALUE ? "long" : "integer";
+        }
+        if ((datatypes & ValueType.DECIMAL) != 0) {
+            return "decimal";
+        }
+        if ((datatypes & ValueType.DOUBLE) != 0) {
+            return "double";
+        }
+        if ((datatypes & ValueType.DATE_TIME) != 0) {
+            return "dateTime";
+        }
+        if ((datatypes & ValueType.DATE) != 0) {
+            return "date";
+        }
+        if ((datatypes & ValueType.TIME) != 0) {
+            return "time";
+        }
+        if ((datatypes & ValueType.DURATION) != 0) {
+            return "duration";
+        }
+        if ((datatypes & ValueType.NCNAME) != 0) {
+            return "NCName";
+        }
+        if ((datatypes & ValueType.HEX_BINARY) != 0) {
+            return "hexBinary";
+        }
+        if ((datatypes & ValueType.NMTOKEN) != 0) {
+            return "NMTOKEN";
+        }
+        if ((datatypes & ValueType.BASE64_BINARY) != 0) {
+            return "base64Binary";
+        }
+        if ((datatypes & ValueType.URI) != 0) {
+            return "anyURI";
+        }
+        return (flags & (ValueType.UNTRIMMED | ValueType.LINE_BREAKS)) != 0 ? "string" : "token";
+    }
+
+    /**
+     * A node is an enumeration candidate if its values are few, short, not numbers or dates, and each one occurred
+     * at least twice on average.
+     */
+    boolean isEnumeration() {
+        int numeric = ValueType.INTEGER | ValueType.DECIMAL | ValueType.DOUBLE | ValueType.DATE | ValueType.DATE_TIME
+                | ValueType.TIME | ValueType.DURATION;
+        return enumeration != null && !enumeration.isEmpty() && (datatypes & numeric) == 0
+                && count >= 2L * enumeration.size();
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(count);
+        out.writeInt(datatypes);
+        out.writeInt(flags);
+        out.writeInt(minLength);
+        out.writeInt(maxLength);
+        out.writeDouble(minValue);
+        out.writeDouble(maxValue);
+        out.write(registers);
+        out.writeInt(enumeration == null ? -1 : enumeration.size());
+        if (enumeration != null) {
+            for (String value : enumeration) {
+                out.writeUTF(value);
+            }
+        }
+    }
+
+    static ValueSketch readFrom(DataInput in) throws IOException {
+        ValueSketch sketch = new ValueSketch();
+        sketch.count = in.readLong();
+        sketch.datatypes = in.readInt();
+        sketch.flags = in.readInt();
+        sketch.minLength = in.readInt();
+        sketch.maxLength = in.readInt();
+        sketch.minValue = in.readDouble();
+        sketch.maxValue = in.readDouble();
+        in.readFully(sketch.registers);
+        int values = in.readInt();
+        if (values < 0) {
+            sketch.enumeration = null;
+        } else {
+            for (int i = 0; i < values; i++) {
+                sketch.enumeration.add(in.readUTF());
+            }
+        }
+        return sketch;
+    }
+}
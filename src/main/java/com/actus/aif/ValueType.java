@@ -0,0 +1,172 @@
+package com.actus.aif;
+
+import com.thaiopensource.datatype.DatatypeLibraryLoader;
+import com.thaiopensource.util.Uri;
+import com.thaiopensource.xml.util.WellKnownNamespaces;
+import org.relaxng.datatype.Datatype;
+import org.relaxng.datatype.DatatypeException;
+import org.relaxng.datatype.DatatypeLibrary;
+
+import java.util.regex.Pattern;
+
+/**
+ * Classifies attribute and text values by the XML Schema datatypes they are valid for. The datatypes trang infers
+ * from are checked with the same datatype library trang uses, so a value is in a class exactly if trang would accept
+ * it for that datatype, e.g. 2020-13-45 has the shape of a date but is not one. Two values with the same signature
+ * are interchangeable as far as trang's datatype inference is concerned.
+ */
+final class ValueType {
+
+    static final int EMPTY = 1;
+    static final int BOOLEAN = 1 << 1;
+    static final int INTEGER = 1 << 2;
+    static final int DECIMAL = 1 << 3;
+    static final int DOUBLE = 1 << 4;
+    static final int DATE = 1 << 5;
+    static final int DATE_TIME = 1 << 6;
+    static final int TIME = 1 << 7;
+    static final int DURATION = 1 << 8;
+    static final int NCNAME = 1 << 9;
+    static final int QNAME = 1 << 10;
+    static final int NMTOKEN = 1 << 11;
+    static final int URI = 1 << 12;
+    /**
+     * the value is not a token: it has leading, trailing or repeated white space
+     */
+    static final int UNTRIMMED = 1 << 13;
+    /**
+     * the value is not a normalizedString: it contains tabs or line breaks
+     */
+    static final int LINE_BREAKS = 1 << 14;
+    static final int HEX_BINARY = 1 << 15;
+    static final int BASE64_BINARY = 1 << 16;
+
+    /**
+     * the datatypes trang infers from, in the order it prefers them, and their classes
+     */
+    private static final String[] TRANG_TYPES = {"boolean", "integer", "decimal", "double", "NCName", "time", "date",
+            "dateTime", "duration", "hexBinary", "NMTOKEN", "base64Binary", "anyURI"};
+    private static final int[] TRANG_CLASSES = {BOOLEAN, INTEGER, DECIMAL, DOUBLE, NCNAME, TIME, DATE,
+            DATE_TIME, DURATION, HEX_BINARY, NMTOKEN, BASE64_BINARY, URI};
+    private static final Datatype[] DATATYPES = datatypes();
+
+    /**
+     * trang only infers a datatype if one of the values is typical for it: shorter than this for most datatypes
+     */
+    private static final int TYPICAL_MAX_LENGTH = 32;
+
+    /**
+     * and longer than this for the binary ones
+     */
+    private static final int BINARY_TYPICAL_MIN_LENGTH = 128;
+
+    private static final Pattern QNAME_PATTERN = Pattern.compile("[\\p{L}_][\\p{L}\\p{N}._\\-]*:[\\p{L}_][\\p{L}\\p{N}._\\-]*");
+
+    private ValueType() {
+    }
+
+    private static Datatype[] datatypes() {
+        DatatypeLibrary library = new DatatypeLibraryLoader().createDatatypeLibrary(WellKnownNamespaces.XML_SCHEMA_DATATYPES);
+        if (library == null) {
+            throw new IllegalStateException("The XML Schema datatype library is missing from the classpath");
+        }
+        Datatype[] datatypes = new Datatype[TRANG_TYPES.length];
+        try {
+            for (int i = 0; i < TRANG_TYPES.length; i++) {
+                datatypes[i] = library.createDatatype(TRANG_TYPES[i]);
+            }
+        } catch (DatatypeException e) {
+            throw new IllegalStateException("Incomplete XML Schema datatype library", e);
+        }
+        return datatypes;
+    }
+
+    /**
+     * @return the bit set of datatype classes the value belongs to
+     */
+    static int classify(String value) {
+        String trimmed = value.trim();
+        int type = 0;
+        if (trimmed.length() != value.length() || trimmed.contains("  ")) {
+            type |= UNTRIMMED;
+        }
+        if (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0 || value.indexOf('\t') >= 0) {
+            type |= LINE_BREAKS;
+        }
+        if (trimmed.isEmpty()) {
+            return type | EMPTY;
+        }
+        for (int i = 0; i < DATATYPES.length; i++) {
+            if (DATATYPES[i].isValid(value, null)) {
+                type |= TRANG_CLASSES[i];
+            }
+        }
+        // a QName needs the namespace declarations in scope, which trang does not infer from either
+        if (QNAME_PATTERN.matcher(trimmed).matches()) {
+            type |= QNAME;
+        }
+        return type;
+    }
+
+    /**
+     * @return of the given classes of the value, those that trang takes as typical for the value: a short value for
+     * most datatypes, a long one for the binary ones, an absolute URI without spaces and the words true and false
+     */
+    static int typical(String value, int type) {
+        int typical = 0;
+        for (int typeClass : TRANG_CLASSES) {
+            if ((type & typeClass) == 0) {
+                continue;
+            }
+            boolean isTypical;
+            if (typeClass == HEX_BINARY || typeClass == BASE64_BINARY) {
+                isTypical = value.length() > BINARY_TYPICAL_MIN_LENGTH;
+            } else if (typeClass == URI) {
+                isTypical = Uri.isAbsolute(value) && !hasEmbeddedWhitespace(value) && !hasExcludedCharacter(value);
+            } else if (typeClass == BOOLEAN) {
+                String trimmed = value.trim();
+                isTypical = trimmed.equals("true") || trimmed.equals("false");
+            } else {
+                isTypical = value.length() < TYPICAL_MAX_LENGTH;
+            }
+            if (isTypical) {
+                typical |= typeClass;
+            }
+        }
+        return typical;
+    }
+
+    private static boolean hasEmbeddedWhitespace(String value) {
+        String trimmed = value.trim();
+        for (int i = 0; i < trimmed.length(); i++) {
+            if (" \t\r\n".indexOf(trimmed.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasExcludedCharacter(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if ("<>\"{}|\\^`".indexOf(value.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the classification and the classes the value is typical for, refined by the number of digits for
+     * integers so that range based types are kept apart as well
+     */
+    static String signature(String value) {
+        int type = classify(value);
+        String signature = type + "/" + typical(value, type);
+        if ((type & INTEGER) != 0) {
+            String trimmed = value.trim();
+            String digits = trimmed.replaceFirst("^[+-]", "");
+            return signature + "/" + (trimmed.startsWith("-") ? "-" : "") + digits.length();
+        }
+        return signature;
+    }
+}
@@ -0,0 +1,80 @@
+package com.actus.aif;
+
+import io.milton.common.Path;
+import io.milton.httpclient.Host;
+import io.milton.httpclient.PropFindResponse;
+
+import java.net.URI;
+
+/**
+ * A file on the webdav server as seen by a listing, independent of whether it was found with PROPFIND or a
+ * sync-collection REPORT.
+ */
+final class WebdavResource {
+
+    final String name;
+
+    /**
+     * the href as reported by the server, identifying the resource across listings
+     */
+    final String href;
+
+    /**
+     * the unencoded path relative to the root path of the host
+     */
+    final Path path;
+
+    final String etag;
+
+    final Long contentLength;
+
+    final String contentType;
+
+    WebdavResource(String name, String href, Path path, String etag, Long contentLength, String contentType) {
+        this.name = name;
+        this.href = href;
+        this.path = path;
+        this.etag = etag;
+        this.contentLength = contentLength;
+        this.contentType = contentType;
+    }
+
+    static WebdavResource of(io.milton.httpclient.File file) {
+        return new WebdavResource(file.name, file.href(), file.path(), file.etag, file.contentLength, file.contentType);
+    }
+
+    /**
+     * @return the resource described by a multistatus response, or null if it is a collection
+     */
+    static WebdavResource of(PropFindResponse response, Host host) {
+        if (response.isCollection()) {
+            return null;
+        }
+        String href = response.getHref();
+        String decoded;
+        try {
+            decoded = URI.create(href).getPath();
+        } catch (IllegalArgumentException e) {
+            decoded = href;
+        }
+        String root = "/" + (host.rootPath != null ? host.rootPath : "");
+        if (decoded.startsWith(root)) {
+            decoded = decoded.substring(root.length());
+        }
+        Path path = Path.path(decoded);
+        return new WebdavResource(path.getName(), href, path, response.getEtag(), response.getContentLength(), response.getContentType());
+    }
+
+    /**
+     * @return true unless the resource is hidden or neither named nor typed as XML
+     */
+    boolean isXml() {
+        if (name == null || name.startsWith(".")) {
+            return false;
+        }
+        if (contentType != null && contentType.equalsIgnoreCase("application/xml")) {
+            return true;
+        }
+        return name.endsWith(".xml");
+    }
+}
@@ -16,7 +16,10 @@ package com.actus.aif;
  * limitations under the License.
  */
 
-import com.thaiopensource.relaxng.translate.Driver;
+import com.thaiopensource.relaxng.edit.SchemaCollection;
+import com.thaiopensource.relaxng.input.InputFailedException;
+import com.thaiopensource.relaxng.output.OutputFailedException;
+import com.thaiopensource.relaxng.translate.util.InvalidParamsException;
 import io.milton.http.exceptions.BadRequestException;
 import io.milton.http.exceptions.NotAuthorizedException;
 import io.milton.httpclient.*;
@@ -26,13 +29,35 @@ import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLStreamException;
 
 import java.io.*;
 import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Maven plugin that grabs XML files from multiple webdav folders and infers a XML schema.
@@ -48,13 +73,13 @@ public class XmlToXsdMojo extends AbstractMojo {
      * the webdav paths of the folders containing the xml files that the schema shall be generated from
      */
     @Parameter(required = true)
-    private List<String> webdavXmlFolderPaths;
+    List<String> webdavXmlFolderPaths;
 
     /**
      * the device-local paths of the folders containing the xml files that the schema shall be generated from
      */
     @Parameter(required = true)
-    private List<String> localXmlFilePaths;
+    List<String> localXmlFilePaths;
 
     /**
      * the webdav hostname (domain)
@@ -68,6 +93,25 @@ public class XmlToXsdMojo extends AbstractMojo {
     @Parameter(required = true)
     private String webdavRoot;
 
+    /**
+     * the port of the webdav server
+     */
+    @Parameter(defaultValue = "443")
+    private int webdavPort;
+
+    /**
+     * whether the webdav server is reached over https; plain http is meant for a local stand-in server during tests
+     */
+    @Parameter(defaultValue = "true")
+    private boolean webdavSecure;
+
+    /**
+     * whether the session cookies set by the webdav server are reused by all requests, so that the password is not
+     * checked again on every request
+     */
+    @Parameter(defaultValue = "true")
+    private boolean reuseWebdavSession;
+
     /**
      * the webdav user
      */
@@ -80,11 +124,235 @@ public class XmlToXsdMojo extends AbstractMojo {
     @Parameter(required = true)
     private String webdavPassword;
 
+    /**
+     * further webdav endpoints serving the same samples under the same relative paths, e.g.
+     * https://mirror.example.com/remote.php/dav; listings and downloads are spread over all endpoints and fail over
+     * between them. The same credentials are used for all of them
+     */
+    @Parameter
+    List<String> webdavMirrors;
+
     /**
      * folder where the generated xml schema will be stored
      */
     @Parameter(required = true)
-    private String xsdPath;
+    String xsdPath;
+
+    /**
+     * further paths the same inferred schema is written to, in the format given by the file extension (.xsd, .rng,
+     * .rnc or .dtd)
+     */
+    @Parameter
+    private List<String> additionalSchemaPaths;
+
+    /**
+     * the number of files downloaded from webdav concurrently
+     */
+    @Parameter(defaultValue = "4")
+    private int downloadThreads;
+
+    /**
+     * whether the number of concurrent requests to each webdav endpoint adapts to how it copes: it grows while
+     * responses stay fast and shrinks on errors, 429 and 503 responses or growing latency. downloadThreads is then
+     * only the starting point
+     */
+    @Parameter(defaultValue = "false")
+    private boolean adaptiveConcurrency;
+
+    /**
+     * with adaptiveConcurrency, the fewest concurrent requests per endpoint
+     */
+    @Parameter(defaultValue = "1")
+    private int minConcurrentRequests;
+
+    /**
+     * with adaptiveConcurrency, the most concurrent requests per endpoint
+     */
+    @Parameter(defaultValue = "32")
+    private int maxConcurrentRequests;
+
+    /**
+     * the maximum number of bytes of downloads in flight at the same time, counted by their expected size; further
+     * downloads wait until earlier ones have finished
+     */
+    @Parameter(defaultValue = "268435456")
+    private long maxInFlightBytes;
+
+    /**
+     * seconds a single download may take before it is aborted and the build fails, 0 for no limit
+     */
+    @Parameter(defaultValue = "0")
+    private int downloadTimeoutSeconds;
+
+    /**
+     * seconds a download may receive no data before it is aborted and the build fails, 0 for no limit
+     */
+    @Parameter(defaultValue = "60")
+    private int downloadStallTimeoutSeconds;
+
+    /**
+     * seconds all downloads together may take; downloads that have not finished by then are aborted and the schema
+     * is inferred from the samples fetched so far. 0 for no limit
+     */
+    @Parameter(defaultValue = "0")
+    private int downloadPhaseTimeoutSeconds;
+
+    /**
+     * whether a download that is slower than 95% of the recent ones gets a second, concurrent request, keeping
+     * whichever finishes first
+     */
+    @Parameter(defaultValue = "false")
+    private boolean hedgeDownloads;
+
+    /**
+     * whether samples that are exact copies of an already collected sample are skipped, first by path, webdav ETag
+     * and size before downloading, then by content hash
+     */
+    @Parameter(defaultValue = "true")
+    boolean deduplicateSamples;
+
+    /**
+     * if set, one schema is inferred per partition instead of one for all samples: "rootElement" groups the samples
+     * by the qualified name of their root element, "folder" by the folder they came from
+     */
+    @Parameter
+    String partitionBy;
+
+    /**
+     * the number of partitions whose schemas are inferred concurrently, by default one per available processor
+     */
+    @Parameter
+    private int inferenceThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * if greater than 0, an element whose last occurrences at the same path this many times brought no new structure
+     * is saturated: later siblings continuing a run of it are skipped before the inference. Speeds up documents made
+     * of long runs of records with the same shape; 0 reads every element
+     */
+    @Parameter(defaultValue = "0")
+    private int saturationThreshold;
+
+    /**
+     * if greater than 0, samples larger than this many MB are split at their repeating record element into shards
+     * that are read in parallel on inferenceThreads, each with the start tags of its ancestors; their skeletons are
+     * joined into one per sample before the inference
+     */
+    @Parameter(defaultValue = "0")
+    private int shardSamplesLargerThanMb;
+
+    /**
+     * the local name of the repeating element large samples are split at; by default the shallowest element that
+     * repeats at the start of the sample
+     */
+    @Parameter
+    private String shardRecordElement;
+
+    /**
+     * whether webdav folders are listed with a sync-collection REPORT (RFC 6578), so that builds after the first one
+     * only fetch the changes since the previous build; falls back to PROPFIND where the server does not support it
+     */
+    @Parameter(defaultValue = "false")
+    boolean useSyncCollection;
+
+    /**
+     * where the sync-collection tokens and the folder members they stand for are kept between builds
+     */
+    @Parameter(defaultValue = "${project.build.directory}/xmlschemagenerator/webdav-sync.state")
+    private String syncStatePath;
+
+    /**
+     * whether the XML files are found with a single WebDAV SEARCH (RFC 5323) over all configured folders instead of
+     * listing every folder; falls back to listing where the server does not support it
+     */
+    @Parameter(defaultValue = "false")
+    boolean useSearch;
+
+    /**
+     * with useSearch, only consider samples modified after this ISO-8601 timestamp, e.g. 2021-01-31T00:00:00Z
+     */
+    @Parameter
+    private String searchModifiedSince;
+
+    /**
+     * if set, the structure learned from the samples is kept in this file between builds and later builds only
+     * download and read the samples that are new since then; delete the file to start over
+     */
+    @Parameter
+    String snapshotPath;
+
+    /**
+     * if set, a report of the values seen per element and attribute is written to this file: datatype, length and
+     * value ranges, distinct count and enumeration candidates
+     */
+    @Parameter
+    private String valueProfilePath;
+
+    /**
+     * OASIS XML catalog files consulted for the external DTDs and entities the samples refer to
+     */
+    @Parameter
+    private List<String> xmlCatalogPaths;
+
+    /**
+     * where external DTDs and entities are cached, so that each of them is downloaded once rather than once per sample
+     */
+    @Parameter(defaultValue = "${project.build.directory}/xmlschemagenerator/entities")
+    private String entityCachePath;
+
+    /**
+     * whether the inference must not download external DTDs and entities; those not found in a catalog or the cache
+     * are replaced by empty ones
+     */
+    @Parameter(defaultValue = "false")
+    private boolean offlineEntities;
+
+    /**
+     * whether every sample is validated against the generated XSD after the schema has been written
+     */
+    @Parameter(defaultValue = "false")
+    boolean validateSamples;
+
+    /**
+     * with validateSamples, whether the build fails if a sample is not valid; otherwise the violations are only logged
+     */
+    @Parameter(defaultValue = "true")
+    private boolean failOnInvalidSamples;
+
+    /**
+     * a folder on the webdav server where generated schemas are shared between builds, keyed by a fingerprint of the
+     * samples and the output paths; a build whose fingerprint is found there reuses that schema instead of
+     * downloading the samples. The folder must exist
+     */
+    @Parameter
+    private String schemaCacheWebdavPath;
+
+    /**
+     * like schemaCacheWebdavPath, but a local or network mounted directory
+     */
+    @Parameter
+    private String schemaCacheDirectory;
+
+    /**
+     * if greater than 0, the build fails when the inference allocated more than this many MB per MB of samples read.
+     * Guards a fixed sample corpus in CI against allocation regressions
+     */
+    @Parameter(defaultValue = "0")
+    private double maxAllocationPerInputMb;
+
+    /**
+     * if greater than 0, the build fails when the heap still in use after a garbage collection during the goal peaked
+     * above this many MB. Set it well below -Xmx to learn about sample growth before the inference runs out of memory
+     */
+    @Parameter(defaultValue = "0")
+    private int maxPeakHeapMb;
+
+    private EntityResolver entityResolver;
+
+    private InferenceMemory memory;
+
+    private SampleDeduplicator deduplicator;
+
+    private ModelSnapshot snapshot;
 
     /**
      * This is the overridden method that converts the XML
@@ -96,148 +364,932 @@ public class XmlToXsdMojo extends AbstractMojo {
      *                                exception causes a "BUILD FAILURE" message to be displayed.
      */
     public void execute() throws MojoExecutionException, MojoFailureException {
-        List<String> filePaths = downloadFiles();
+        memory = new InferenceMemory();
+        try {
+            generate();
+        } finally {
+            memory.close();
+        }
+    }
+
+    /**
+     * Collects the samples and generates the schemas from them.
+     */
+    private void generate() throws MojoExecutionException, MojoFailureException {
+        List<String> schemaPaths = schemaPaths();
+        deduplicator = deduplicateSamples ? new SampleDeduplicator() : null;
+        SchemaPartitions partitions = schemaPartitions();
+        snapshot = loadSnapshot();
+        if (snapshot != null && partitions != null) {
+            throw new MojoExecutionException("snapshotPath cannot be combined with partitionBy");
+        }
+        SchemaPhaseEvent collectPhase = SchemaPhaseEvent.start();
+        HostPool hosts = createHostPool();
+        SchemaCache cache = snapshot == null && partitions == null ? schemaCache(hosts.primary()) : null;
+        String cacheKey = null;
+        List<Sample> samples;
+        if (cache != null) {
+            // the fingerprint needs the complete listing before anything is downloaded
+            List<WebdavResource> webdavFiles = findWebdavFiles(hosts);
+            cacheKey = schemaCacheKey(webdavFiles, schemaPaths);
+            if (cacheKey != null && cache.restore(cacheKey, schemaPaths)) {
+                getLog().info("Reused the schema of build cache entry " + cacheKey + ", nothing to infer");
+                return;
+            }
+            samples = createTemporaryLocalFiles(hosts, webdavFiles);
+        } else {
+            samples = fetchSamples(hosts, sink -> discoverWebdavFiles(hosts, sink));
+            getLog().info("Total files to process: " + samples.size());
+        }
         
         // Add local XML files if configured
         if (localXmlFilePaths != null && !localXmlFilePaths.isEmpty()) {
             getLog().info("Adding " + localXmlFilePaths.size() + " local XML files");
-            filePaths.addAll(localXmlFilePaths);
+            for (String localXmlFilePath : localXmlFilePaths) {
+                File localFile = new File(localXmlFilePath);
+                String identity = ModelSnapshot.identity(localFile);
+                if (snapshot != null && snapshot.covers(identity)) {
+                    getLog().debug("Skipping " + localXmlFilePath + ", already in the model snapshot");
+                } else if (!isDuplicate(localFile)) {
+                    samples.add(new Sample(localFile.getName(), localXmlFilePath, localFile, localFile.length(), 0, identity));
+                }
+            }
         }
+        if (deduplicator != null) {
+            getLog().info(deduplicator.summary());
+        }
+        collectPhase.finish("collect", samples);
         
-        if (filePaths.isEmpty()) {
+        if (samples.isEmpty() && (snapshot == null || snapshot.isEmpty())) {
             getLog().warn("No XML files found to process. Please check your WebDAV paths and local XML file paths.");
             return; // Skip XSD generation if no files are available
         }
         
-        getLog().info("Generating XSD from " + filePaths.size() + " XML files");
-        generateXsdFromXmlFiles(filePaths);
+        profileValues(samples);
+        getLog().info("Generating XSD from " + samples.size() + " XML files");
+        Map<String, List<Sample>> schemaSamples;
+        if (snapshot != null) {
+            generateFromSnapshot(samples, schemaPaths);
+            schemaSamples = Map.of(xsdPath, samples);
+        } else {
+            Map<Sample, Sample> reduced = reduceSamples(samples, false);
+            List<Sample> inferenceSamples = samples.stream().map(reduced::get).collect(Collectors.toList());
+            try {
+                if (cacheKey != null) {
+                    generateCachedSchemas(cache, cacheKey, filePaths(inferenceSamples), schemaPaths);
+                    schemaSamples = Map.of(xsdPath, samples);
+                } else if (partitions == null) {
+                    generateSchemas(filePaths(inferenceSamples), schemaPaths);
+                    schemaSamples = Map.of(xsdPath, samples);
+                } else {
+                    // validate the partitions with the original samples, not their reductions
+                    Map<Sample, Sample> originals = new IdentityHashMap<>();
+                    reduced.forEach((original, skeleton) -> originals.put(skeleton, original));
+                    schemaSamples = new LinkedHashMap<>();
+                    for (Map.Entry<String, List<Sample>> partition : generatePartitionedSchemas(partitions, inferenceSamples, schemaPaths).entrySet()) {
+                        schemaSamples.put(partition.getKey(), partition.getValue().stream().map(originals::get).collect(Collectors.toList()));
+                    }
+                }
+            } finally {
+                deleteSkeletons(reduced);
+            }
+        }
+        memory.check(maxAllocationPerInputMb, maxPeakHeapMb, getLog());
+        if (validateSamples) {
+            validateSamples(schemaSamples);
+        }
     }
 
-    private void generateXsdFromXmlFiles(List<String> filePaths) {
-        filePaths.add(xsdPath);
-        new Driver().run(filePaths.toArray(String[]::new));
+    /**
+     * @return the shared schema build cache, or null if none is configured
+     */
+    private SchemaCache schemaCache(Host host) {
+        if (schemaCacheWebdavPath != null && !schemaCacheWebdavPath.isEmpty()) {
+            return SchemaCache.webdav(host, schemaCacheWebdavPath, getLog());
+        }
+        if (schemaCacheDirectory != null && !schemaCacheDirectory.isEmpty()) {
+            return SchemaCache.directory(Paths.get(schemaCacheDirectory), getLog());
+        }
+        return null;
     }
 
-    private List<String> downloadFiles() throws MojoExecutionException {
-        final Host host = new Host(webdavHostname, webdavRoot, 443, webdavUsername, webdavPassword, null, null);
-        host.setSecure(true);
-        host.setUsePreemptiveAuth(true);
-        host.setUseDigestForPreemptiveAuth(false); // Force Basic auth instead of Digest
-        final List<io.milton.httpclient.Resource> xmlFiles = new ArrayList<>();
-        for (String xmlFolderPath : webdavXmlFolderPaths) {
-            try {
-                getLog().info("Checking WebDAV folder: " + xmlFolderPath);
-                Folder xmlFolder;
+    private String schemaCacheKey(List<WebdavResource> webdavFiles, List<String> schemaPaths) {
+        try {
+            String key = SchemaCache.fingerprint(webdavFiles, localXmlFilePaths, schemaPaths, schemaSettings());
+            if (key == null) {
+                getLog().info("Not using the schema build cache, some samples have no ETag");
+            }
+            return key;
+        } catch (IOException | MojoExecutionException e) {
+            getLog().warn("Not using the schema build cache: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the configuration that affects the generated schemas, for the build cache key
+     */
+    private List<String> schemaSettings() throws IOException, MojoExecutionException {
+        List<String> settings = new ArrayList<>();
+        settings.add("saturationThreshold=" + saturationThreshold);
+        settings.add("shardSamplesLargerThanMb=" + shardSamplesLargerThanMb);
+        settings.add("shardRecordElement=" + shardRecordElement);
+        settings.add("deduplicateSamples=" + deduplicateSamples);
+        if (xmlCatalogPaths != null) {
+            for (String xmlCatalogPath : xmlCatalogPaths) {
+                File catalog = new File(xmlCatalogPath);
+                settings.add("xmlCatalog=" + (catalog.isFile()
+                        ? Long.toHexString(SampleDeduplicator.contentHash(catalog)) + "/" + catalog.length() : "missing"));
+            }
+        }
+        settings.add("offlineEntities=" + offlineEntities);
+        if (offlineEntities) {
+            // offline, an entity missing from the cache is read as empty, so the cache content shapes the schema
+            settings.add("entities=" + Long.toHexString(((CachingEntityResolver) entityResolver()).cachedEntitiesHash()));
+        }
+        return settings;
+    }
+
+    /**
+     * Generates the schemas into a staging folder, installs them at the schema paths and publishes them to the
+     * build cache.
+     */
+    private void generateCachedSchemas(SchemaCache cache, String cacheKey, List<String> filePaths, List<String> schemaPaths) throws MojoExecutionException {
+        java.nio.file.Path staging = null;
+        try {
+            staging = Files.createTempDirectory("xsd-cache");
+            List<String> stagedPaths = new ArrayList<>();
+            for (int i = 0; i < schemaPaths.size(); i++) {
+                stagedPaths.add(staging.resolve(Integer.toString(i)).resolve(Paths.get(schemaPaths.get(i)).getFileName()).toString());
+            }
+            generateSchemas(filePaths, stagedPaths);
+            SchemaCache.install(staging, schemaPaths);
+            cache.publish(cacheKey, staging);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to install the generated schema", e);
+        } finally {
+            if (staging != null) {
+                try (Stream<java.nio.file.Path> files = Files.walk(staging)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+                } catch (IOException e) {
+                    getLog().debug("Could not remove " + staging + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Validates each group of samples against the XSD generated from it.
+     *
+     * @param schemaSamples the samples keyed by the path of their XSD
+     */
+    void validateSamples(Map<String, List<Sample>> schemaSamples) throws MojoExecutionException, MojoFailureException {
+        int invalid = 0;
+        int total = 0;
+        SchemaPhaseEvent validatePhase = SchemaPhaseEvent.start();
+        try {
+            for (Map.Entry<String, List<Sample>> entry : schemaSamples.entrySet()) {
+                SampleValidator validator = new SampleValidator(new File(entry.getKey()), entityResolver(), getLog());
+                invalid += validator.validate(entry.getValue(), inferenceThreads);
+                total += entry.getValue().size();
+            }
+        } catch (SAXException e) {
+            throw new MojoExecutionException("Failed to compile the generated schema for validation", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while validating samples", e);
+        }
+        validatePhase.finish("validate", total);
+        if (invalid == 0) {
+            getLog().info("All " + total + " samples are valid against the generated schema");
+        } else if (failOnInvalidSamples) {
+            throw new MojoFailureException(invalid + " of " + total + " samples are not valid against the generated schema");
+        } else {
+            getLog().warn(invalid + " of " + total + " samples are not valid against the generated schema");
+        }
+    }
+
+    static List<String> filePaths(List<Sample> samples) {
+        return samples.stream().map(sample -> sample.file.getAbsolutePath()).collect(Collectors.toList());
+    }
+
+    private SchemaPartitions schemaPartitions() throws MojoExecutionException {
+        if (partitionBy == null || partitionBy.isEmpty()) {
+            return null;
+        }
+        try {
+            return new SchemaPartitions(partitionBy, getLog());
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Infers one schema per partition, concurrently, each written to a sub folder named after the partition next to
+     * the configured schema paths, and writes an index of the generated files next to xsdPath.
+     *
+     * @return the samples of each partition keyed by the path of its XSD
+     */
+    private Map<String, List<Sample>> generatePartitionedSchemas(SchemaPartitions partitions, List<Sample> samples, List<String> schemaPaths) throws MojoExecutionException {
+        Map<String, List<Sample>> groups = partitions.group(samples);
+        Map<String, String> directoryNames = SchemaPartitions.directoryNames(groups.keySet());
+        getLog().info("Inferring " + groups.size() + " partitions by " + partitionBy);
+
+        Map<String, List<String>> outputs = new TreeMap<>();
+        Map<String, Future<?>> results = new TreeMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(inferenceThreads, groups.size())));
+        try {
+            for (Map.Entry<String, List<Sample>> group : groups.entrySet()) {
+                List<String> partitionPaths = new ArrayList<>();
+                for (String schemaPath : schemaPaths) {
+                    java.nio.file.Path path = Paths.get(schemaPath);
+                    partitionPaths.add(path.resolveSibling(directoryNames.get(group.getKey())).resolve(path.getFileName()).toString());
+                }
+                outputs.put(group.getKey(), partitionPaths);
+                results.put(group.getKey(), executor.submit(() -> {
+                    generateSchemas(filePaths(group.getValue()), partitionPaths);
+                    return null;
+                }));
+            }
+            for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                } catch (ExecutionException e) {
+                    throw new MojoExecutionException("Failed to generate schema for partition " + result.getKey(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while generating schemas", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        String xsdFileName = Paths.get(xsdPath).getFileName().toString();
+        java.nio.file.Path index = Paths.get(xsdPath).resolveSibling(xsdFileName.replaceFirst("\\.[^.]*$", "") + "-index.xml");
+        try {
+            partitions.writeIndex(index, groups, outputs);
+            getLog().info("Wrote partition index: " + index);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to write partition index " + index, e);
+        }
+
+        Map<String, List<Sample>> schemaSamples = new LinkedHashMap<>();
+        groups.forEach((key, group) -> schemaSamples.put(outputs.get(key).get(0), group));
+        return schemaSamples;
+    }
+
+    /**
+     * Writes the value profile of the samples, together with the samples of earlier builds if there is a model
+     * snapshot.
+     */
+    private void profileValues(List<Sample> samples) throws MojoExecutionException {
+        if (valueProfilePath == null || valueProfilePath.isEmpty()) {
+            return;
+        }
+        SchemaPhaseEvent profilePhase = SchemaPhaseEvent.start();
+        try {
+            Map<String, ValueSketch> profile = new ValueProfiler(getLog()).profile(samples, inferenceThreads);
+            profilePhase.finish("profile", samples);
+            if (snapshot != null) {
+                profile = snapshot.mergeProfile(profile);
+            }
+            ValueProfiler.writeReport(Paths.get(valueProfilePath), profile);
+            getLog().info("Wrote value profile of " + profile.size() + " nodes: " + valueProfilePath);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while profiling values", e);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to write value profile " + valueProfilePath, e);
+        }
+    }
+
+    private ModelSnapshot loadSnapshot() {
+        if (snapshotPath == null || snapshotPath.isEmpty()) {
+            return null;
+        }
+        try {
+            ModelSnapshot loaded = ModelSnapshot.load(Paths.get(snapshotPath));
+            getLog().info("Model snapshot covers " + loaded.sampleCount() + " samples in " + loaded.skeletonCount() + " skeletons");
+            return loaded;
+        } catch (IOException | RuntimeException e) {
+            getLog().warn("Ignoring unreadable model snapshot " + snapshotPath + ": " + e.getMessage());
+            return ModelSnapshot.empty(Paths.get(snapshotPath));
+        }
+    }
+
+    /**
+     * Reduces the samples for the inference, concurrently on inferenceThreads: samples larger than
+     * shardSamplesLargerThanMb are split into shards that are reduced in parallel and joined into one skeleton, and
+     * with a saturation threshold all samples are reduced.
+     *
+     * @param reduceAll whether every sample is reduced, as the model snapshot keeps only skeletons
+     * @return per sample the sample to infer from: its skeleton, or the sample itself if it needs no reduction or could
+     * not be reduced
+     */
+    private Map<Sample, Sample> reduceSamples(List<Sample> samples, boolean reduceAll) throws MojoExecutionException {
+        Map<Sample, Sample> reduced = new IdentityHashMap<>();
+        long shardFrom = shardSamplesLargerThanMb * 1024L * 1024L;
+        boolean reduceWhole = reduceAll || saturationThreshold > 0;
+        if (!reduceWhole && (shardFrom <= 0 || samples.stream().noneMatch(sample -> sample.size > shardFrom))) {
+            samples.forEach(sample -> reduced.put(sample, sample));
+            return reduced;
+        }
+        SchemaPhaseEvent reducePhase = SchemaPhaseEvent.start();
+        ThreadLocal<SampleSkeleton> reducers = ThreadLocal.withInitial(() -> new SampleSkeleton(saturationThreshold));
+        SampleSkeleton stitcher = new SampleSkeleton(saturationThreshold);
+        LongAdder skipped = new LongAdder();
+        SampleSharder sharder = new SampleSharder(shardRecordElement);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, inferenceThreads));
+        try {
+            Map<Sample, List<SampleSharder.Shard>> sampleShards = new IdentityHashMap<>();
+            Map<Sample, List<Future<SampleSkeleton.Node>>> results = new LinkedHashMap<>();
+            for (Sample sample : samples) {
+                List<SampleSharder.Shard> shards = List.of();
+                if (shardFrom > 0 && sample.size > shardFrom) {
+                    try {
+                        // a few shards per thread even out records of different sizes
+                        shards = sharder.split(sample.file, Math.max(16L * 1024 * 1024, sample.size / (4L * Math.max(1, inferenceThreads))));
+                    } catch (IOException | RuntimeException e) {
+                        getLog().warn("Could not split " + sample.source + " into shards: " + e.getMessage());
+                    }
+                    getLog().info(shards.isEmpty()
+                            ? "Not sharding " + sample.source + ", no repeating record element found"
+                            : "Split " + sample.source + " into " + shards.size() + " shards");
+                }
+                List<Future<SampleSkeleton.Node>> parts = new ArrayList<>();
+                if (!shards.isEmpty()) {
+                    for (SampleSharder.Shard shard : shards) {
+                        parts.add(executor.submit(() -> {
+                            try (InputStream in = new BufferedInputStream(shard.open())) {
+                                return skeleton(sample, reducers.get(), skipped, in, shard.end - shard.start);
+                            }
+                        }));
+                    }
+                } else if (reduceWhole) {
+                    parts.add(executor.submit(() -> {
+                        try (InputStream in = new BufferedInputStream(new FileInputStream(sample.file))) {
+                            return skeleton(sample, reducers.get(), skipped, in, sample.size);
+                        }
+                    }));
+                }
+                sampleShards.put(sample, shards);
+                results.put(sample, parts);
+            }
+            long before = 0;
+            long after = 0;
+            for (Map.Entry<Sample, List<Future<SampleSkeleton.Node>>> result : results.entrySet()) {
+                Sample sample = result.getKey();
+                if (result.getValue().isEmpty()) {
+                    reduced.put(sample, sample);
+                    continue;
+                }
                 try {
-                    xmlFolder = host.getFolder(xmlFolderPath);
-                    if (xmlFolder == null) {
-                        getLog().warn("WebDAV folder not found: " + xmlFolderPath);
-                        continue; // Skip this folder and continue with the next
+                    List<SampleSkeleton.Node> skeletons = new ArrayList<>();
+                    for (Future<SampleSkeleton.Node> part : result.getValue()) {
+                        skeletons.add(part.get());
                     }
-                } catch (Exception e) {
-                    getLog().error("Error accessing WebDAV folder: " + xmlFolderPath + " - " + e.getMessage());
-                    getLog().info("Skipping folder and continuing...");
-                    continue; // Skip this folder on any error
-                }
-                
-                List<? extends io.milton.httpclient.Resource> children = xmlFolder.children();
-                getLog().info("Found " + children.size() + " items in " + xmlFolderPath);
-                
-                // Debug: log all child resources
-                for (io.milton.httpclient.Resource child : children) {
-                    if (child != null) {
-                        getLog().info("  - Found item: " + child.name + " (" + child.getClass().getSimpleName() + ")");
-                    } else {
-                        getLog().warn("  - Found NULL item");
+                    List<SampleSharder.Shard> shards = sampleShards.get(sample);
+                    // shards are joined again, so that what precedes or follows the records keeps its cardinality
+                    byte[] skeleton = shards.isEmpty()
+                            ? stitcher.write(skeletons.get(0))
+                            : stitcher.stitch(skeletons, shards.stream().map(shard -> shard.depth).collect(Collectors.toList()));
+                    File file = Files.createTempFile(sample.name, ".skeleton.xml").toFile();
+                    file.deleteOnExit();
+                    Files.write(file.toPath(), skeleton);
+                    reduced.put(sample, new Sample(sample.name, sample.source, file, file.length(), 0, sample.identity));
+                    before += sample.size;
+                    after += file.length();
+                } catch (ExecutionException | IOException | XMLStreamException e) {
+                    getLog().warn("Could not reduce " + sample.source + ", using it as is: "
+                            + (e instanceof ExecutionException ? e.getCause() : e).getMessage());
+                    reduced.put(sample, sample);
+                }
+            }
+            skipped.add(stitcher.skippedElements());
+            getLog().info("Reduced " + before + " bytes of samples to " + after + " bytes"
+                    + (saturationThreshold > 0 ? ", saturation skipped " + skipped.sum() + " elements" : ""));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteSkeletons(reduced);
+            throw new MojoExecutionException("Interrupted while reducing samples", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        reducePhase.finish("reduce", samples);
+        return reduced;
+    }
+
+    /**
+     * Reduces one sample or shard of a sample to its skeleton tree.
+     */
+    private static SampleSkeleton.Node skeleton(Sample sample, SampleSkeleton reducer, LongAdder skipped, InputStream in, long size) throws XMLStreamException {
+        SampleEvent event = SampleEvent.start();
+        long skippedBefore = reducer.skippedElements();
+        SampleSkeleton.Node skeleton = reducer.read(in);
+        skipped.add(reducer.skippedElements() - skippedBefore);
+        event.finish("reduce", sample.source, size);
+        return skeleton;
+    }
+
+    /**
+     * Deletes the skeletons made by {@link #reduceSamples}, leaving the samples that were used as they are.
+     */
+    private static void deleteSkeletons(Map<Sample, Sample> reduced) {
+        reduced.forEach((original, skeleton) -> {
+            if (skeleton != original) {
+                skeleton.file.delete();
+            }
+        });
+    }
+
+    /**
+     * Adds the skeletons of the new samples to the model snapshot, infers the schema from all skeletons in it and
+     * saves the snapshot once the schema has been written.
+     */
+    private void generateFromSnapshot(List<Sample> samples, List<String> schemaPaths) throws MojoExecutionException {
+        Map<Sample, Sample> reduced = reduceSamples(samples, true);
+        List<String> unreduced = new ArrayList<>();
+        try {
+            for (Sample sample : samples) {
+                Sample skeleton = reduced.get(sample);
+                if (skeleton == sample) {
+                    // still part of this schema, but read again by the next build
+                    unreduced.add(sample.file.getAbsolutePath());
+                } else {
+                    snapshot.add(sample.identity, Files.readAllBytes(skeleton.file.toPath()));
+                }
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read a sample skeleton", e);
+        } finally {
+            deleteSkeletons(reduced);
+        }
+        getLog().info("Model snapshot: " + snapshot.sampleCount() + " samples in " + snapshot.skeletonCount() + " skeletons");
+
+        java.nio.file.Path skeletonFolder = null;
+        try {
+            skeletonFolder = Files.createTempDirectory("xsd-skeletons");
+            List<String> filePaths = snapshot.writeSkeletons(skeletonFolder);
+            filePaths.addAll(unreduced);
+            generateSchemas(filePaths, schemaPaths);
+            snapshot.save();
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to use model snapshot " + snapshotPath, e);
+        } finally {
+            if (skeletonFolder != null) {
+                File[] files = skeletonFolder.toFile().listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
                     }
                 }
-                
-                // Create a temporary list that matches the required type
-                List<io.milton.httpclient.Resource> filteredResources = children
-                                .stream()
-                                .filter(resource -> {
-                                    if (resource == null) {
-                                        return false;
-                                    }
-                                    
-                                    // Skip folders and hidden files
-                                    if (resource.getClass() == io.milton.httpclient.Folder.class || 
-                                        resource.name.startsWith(".")) {
-                                        return false;
-                                    }
-                                    
-                                    // Check if it's an XML file
-                                    io.milton.httpclient.File fileResource = (io.milton.httpclient.File) resource;
-                                    if (fileResource.contentType != null && 
-                                        fileResource.contentType.equalsIgnoreCase("application/xml")) {
-                                        return true;
-                                    }
-                                    
-                                    return resource.name.endsWith(".xml");
-                                })
-                                .map(resource -> (io.milton.httpclient.Resource) resource)
-                                .collect(Collectors.toList());
-                                
-                xmlFiles.addAll(filteredResources);
-                getLog().info("Found " + xmlFiles.size() + " XML files to process");
-            }
-            catch (IOException | HttpException | NotAuthorizedException | BadRequestException e) {
-                getLog().error("Error accessing WebDAV folder: " + xmlFolderPath, e);
-                throw new MojoExecutionException("Failed to execute plugin", e);
-            }
-        }
-        return createTemporaryLocalFiles(host, xmlFiles);
-    }
-
-    private List<String> createTemporaryLocalFiles(Host host, List<io.milton.httpclient.Resource> webdavResources) {
-        List<String> filePaths = new ArrayList<>();
-        if (webdavResources.isEmpty()) {
-            getLog().warn("No XML files found to download");
-            return filePaths;
+                skeletonFolder.toFile().delete();
+            }
         }
-        
-        webdavResources.forEach(webdavResource -> {
-            if (webdavResource == null) {
-                getLog().warn("Skipping null WebDAV resource");
-                return;
+    }
+
+    /**
+     * @return xsdPath followed by the additional schema paths
+     * @throws MojoExecutionException if one of them has a format that cannot be written
+     */
+    List<String> schemaPaths() throws MojoExecutionException {
+        List<String> schemaPaths = new ArrayList<>();
+        schemaPaths.add(xsdPath);
+        if (additionalSchemaPaths != null) {
+            schemaPaths.addAll(additionalSchemaPaths);
+        }
+        try {
+            schemaPaths.forEach(SchemaGenerator::checkSupported);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        return schemaPaths;
+    }
+
+    /**
+     * Infers the schema from the given samples once and writes it to every output path.
+     */
+    void generateSchemas(List<String> filePaths, List<String> outputPaths) throws MojoExecutionException {
+        SchemaGenerator generator = new SchemaGenerator(getLog(), entityResolver());
+        try {
+            SchemaPhaseEvent inferPhase = SchemaPhaseEvent.start();
+            long allocated = memory != null ? memory.start() : 0;
+            SchemaCollection schema = generator.infer(filePaths);
+            if (memory != null) {
+                memory.finish(allocated, filePaths);
             }
-            
+            inferPhase.finish("infer", filePaths.size());
+            for (String outputPath : outputPaths) {
+                SchemaPhaseEvent writePhase = SchemaPhaseEvent.start();
+                generator.write(schema, outputPath);
+                writePhase.finish("write " + outputPath, filePaths.size());
+                getLog().info("Wrote schema: " + outputPath);
+            }
+        } catch (IOException | SAXException | InputFailedException | OutputFailedException | InvalidParamsException e) {
+            throw new MojoExecutionException("Failed to generate schema", e);
+        }
+    }
+
+    /**
+     * @return the resolver for external entities of the samples, created on first use
+     */
+    synchronized EntityResolver entityResolver() throws MojoExecutionException {
+        if (entityResolver == null) {
             try {
-                getLog().info("Downloading file: " + webdavResource.name);
-                File tempFile = Files.createTempFile(webdavResource.name, ".xml").toFile();
-                tempFile.deleteOnExit();
-                
-                ((io.milton.httpclient.File) webdavResource).downloadToFile(tempFile, new ProgressListener() {
-                    @Override
-                    public void onRead(final int i) {
-                    }
+                entityResolver = new CachingEntityResolver(xmlCatalogPaths, Paths.get(entityCachePath), offlineEntities, getLog());
+            } catch (IOException | RuntimeException e) {
+                throw new MojoExecutionException("Failed to set up entity resolution in " + entityCachePath, e);
+            }
+        }
+        return entityResolver;
+    }
 
-                    @Override
-                    public void onProgress(final long l, final Long aLong, final String s) {
-                        getLog().info("Downloading a temporary copy of file: " + s + " (" + l + " bytes)");
-                    }
+    Host createHost() {
+        return createHost(webdavHostname, webdavRoot, webdavPort, webdavSecure);
+    }
 
-                    @Override
-                    public void onComplete(final String s) {
-                        getLog().info("Downloaded: " + s);
-                    }
+    private Host createHost(String hostname, String root, int port, boolean secure) {
+        final Host host = new Host(hostname, root, port, webdavUsername, webdavPassword, null, null);
+        host.setSecure(secure);
+        host.setUsePreemptiveAuth(true);
+        host.setUseDigestForPreemptiveAuth(false); // Force Basic auth instead of Digest
+        host.setReuseSession(reuseWebdavSession);
+        return host;
+    }
 
-                    @Override
-                    public boolean isCancelled() {
-                        return false;
-                    }
-                });
-                
-                filePaths.add(tempFile.getAbsolutePath());
-                getLog().info("Added file to processing list: " + tempFile.getAbsolutePath());
+    /**
+     * @return the configured webdav host followed by the mirrors
+     */
+    HostPool createHostPool() throws MojoExecutionException {
+        List<HostPool.Endpoint> endpoints = new ArrayList<>();
+        endpoints.add(new HostPool.Endpoint(webdavHostname, createHost()));
+        if (webdavMirrors != null) {
+            for (String mirror : webdavMirrors) {
+                try {
+                    URI uri = new URI(mirror);
+                    boolean secure = !"http".equalsIgnoreCase(uri.getScheme());
+                    int port = uri.getPort() > 0 ? uri.getPort() : secure ? 443 : 80;
+                    String root = uri.getPath() == null || uri.getPath().isEmpty() ? "/" : uri.getPath();
+                    endpoints.add(new HostPool.Endpoint(uri.getHost(), createHost(uri.getHost(), root, port, secure)));
+                } catch (URISyntaxException | NullPointerException e) {
+                    throw new MojoExecutionException("Invalid webdav mirror " + mirror, e);
+                }
             }
-            catch (IOException | HttpException e) {
-                getLog().error("Error downloading file: " + webdavResource.name, e);
+        }
+        HostPool hosts = new HostPool(endpoints, getLog());
+        if (adaptiveConcurrency) {
+            try {
+                hosts.limitConcurrency(minConcurrentRequests, maxConcurrentRequests, downloadThreads);
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException(e.getMessage(), e);
             }
-        });
-        
-        getLog().info("Total files to process: " + filePaths.size());
-        return filePaths;
+        }
+        return hosts;
+    }
+
+    /**
+     * Finds the XML files that still have to be read, in one list.
+     */
+    private List<WebdavResource> findWebdavFiles(HostPool hosts) throws MojoExecutionException {
+        final List<WebdavResource> xmlFiles = new ArrayList<>();
+        discoverWebdavFiles(hosts, xmlFiles::addAll);
+        return xmlFiles;
+    }
+
+    /**
+     * Finds the XML files in the configured webdav folders that still have to be read, handing them to the sink
+     * folder by folder as the listings arrive.
+     *
+     * @throws MojoExecutionException if a folder cannot be searched, synced or listed
+     */
+    void discoverWebdavFiles(HostPool hosts, Consumer<List<WebdavResource>> sink) throws MojoExecutionException {
+        int total = 0;
+        int covered = 0;
+        List<WebdavResource> found = useSearch ? searchXmlFiles(hosts) : null;
+        if (found != null) {
+            getLog().info("Found " + found.size() + " XML files to process");
+            covered += withoutSnapshot(found, sink);
+        } else {
+            SyncState syncState = loadSyncState();
+            for (String xmlFolderPath : webdavXmlFolderPaths) {
+                List<WebdavResource> folderFiles = syncState != null ? syncXmlFiles(hosts, xmlFolderPath, syncState) : listXmlFiles(hosts, xmlFolderPath);
+                total += folderFiles.size();
+                getLog().info("Found " + total + " XML files to process");
+                covered += withoutSnapshot(folderFiles, sink);
+            }
+            saveSyncState(syncState);
+        }
+        if (snapshot != null) {
+            getLog().info(covered + " XML files are already in the model snapshot");
+        }
+    }
+
+    /**
+     * Hands the files that are not yet in the model snapshot to the sink.
+     *
+     * @return the number of files left out
+     */
+    private int withoutSnapshot(List<WebdavResource> xmlFiles, Consumer<List<WebdavResource>> sink) {
+        if (snapshot == null) {
+            sink.accept(xmlFiles);
+            return 0;
+        }
+        List<WebdavResource> remaining = xmlFiles.stream()
+                .filter(resource -> resource == null || !snapshot.covers(ModelSnapshot.identity(resource)))
+                .collect(Collectors.toList());
+        sink.accept(remaining);
+        return xmlFiles.size() - remaining.size();
+    }
+
+    /**
+     * @return the XML files directly inside the given webdav folder, or an empty list if there is no such folder
+     * @throws MojoExecutionException if the folder cannot be listed
+     */
+    List<WebdavResource> listXmlFiles(Host host, String xmlFolderPath) throws MojoExecutionException {
+        return listXmlFiles(HostPool.of(host, getLog()), xmlFolderPath);
+    }
+
+    /**
+     * @return the XML files directly inside the given webdav folder as listed by any of the endpoints, or an empty
+     * list if there is no such folder
+     * @throws MojoExecutionException if the folder cannot be listed on any of the endpoints
+     */
+    List<WebdavResource> listXmlFiles(HostPool hosts, String xmlFolderPath) throws MojoExecutionException {
+        getLog().info("Checking WebDAV folder: " + xmlFolderPath);
+        List<WebdavResource> found;
+        try {
+            found = hosts.call(host -> listXmlFolder(host, xmlFolderPath), resources -> 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while listing WebDAV folder " + xmlFolderPath, e);
+        } catch (Exception e) {
+            throw new MojoExecutionException("Error accessing WebDAV folder " + xmlFolderPath + ": " + e.getMessage(), e);
+        }
+        if (found == null) {
+            getLog().warn("WebDAV folder not found: " + xmlFolderPath);
+            return new ArrayList<>(); // Skip this folder and continue with the next
+        }
+        return found;
+    }
+
+    /**
+     * @return the XML files directly inside the given webdav folder, or null if there is no such folder
+     */
+    private List<WebdavResource> listXmlFolder(Host host, String xmlFolderPath) throws IOException, HttpException, NotAuthorizedException, BadRequestException {
+        Folder xmlFolder = host.getFolder(xmlFolderPath);
+        if (xmlFolder == null) {
+            return null;
+        }
+
+        List<? extends io.milton.httpclient.Resource> children = xmlFolder.children();
+        getLog().info("Found " + children.size() + " items in " + xmlFolderPath);
+
+        // Debug: log all child resources
+        if (getLog().isDebugEnabled()) {
+            for (io.milton.httpclient.Resource child : children) {
+                if (child != null) {
+                    getLog().debug("  - Found item: " + child.name + " (" + child.getClass().getSimpleName() + ")");
+                } else {
+                    getLog().debug("  - Found NULL item");
+                }
+            }
+        }
+
+        return children
+                .stream()
+                .filter(resource -> resource instanceof io.milton.httpclient.File) // Skip folders
+                .map(resource -> WebdavResource.of((io.milton.httpclient.File) resource))
+                .filter(WebdavResource::isXml)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Asks the primary server for the XML files in all configured folders with a single SEARCH request, the search
+     * results belonging to that server.
+     *
+     * @return the XML files, or null if the server does not support SEARCH and the folders have to be listed
+     * @throws MojoExecutionException if the search fails
+     */
+    private List<WebdavResource> searchXmlFiles(HostPool hosts) throws MojoExecutionException {
+        Host host = hosts.primary();
+        List<io.milton.common.Path> scopes = webdavXmlFolderPaths
+                .stream()
+                .map(io.milton.common.Path::path)
+                .collect(Collectors.toList());
+        try {
+            Date since = searchModifiedSince == null || searchModifiedSince.isEmpty() ? null
+                    : Date.from(OffsetDateTime.parse(searchModifiedSince).toInstant());
+            List<PropFindResponse> responses = hosts.callPrimary(primary -> primary.searchXml(scopes, "1", since, null), found -> 0);
+            if (responses == null) {
+                getLog().info("Server does not support SEARCH, listing folders instead");
+                return null;
+            }
+            return responses
+                    .stream()
+                    .map(response -> WebdavResource.of(response, host))
+                    .filter(resource -> resource != null && resource.isXml())
+                    .collect(Collectors.toList());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while searching for XML files", e);
+        } catch (Exception e) {
+            throw new MojoExecutionException("SEARCH for XML files failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Finds the XML files of a webdav folder with a sync-collection REPORT to the primary server, which the sync tokens
+     * belong to, asking only for the changes since the token stored by the previous build. Falls back to a full listing
+     * when the server does not support the report.
+     *
+     * @throws MojoExecutionException if the report or the listing fails
+     */
+    private List<WebdavResource> syncXmlFiles(HostPool hosts, String xmlFolderPath, SyncState syncState) throws MojoExecutionException {
+        List<WebdavResource> members;
+        try {
+            members = syncFolder(hosts, xmlFolderPath, syncState);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while syncing WebDAV folder " + xmlFolderPath, e);
+        } catch (Exception e) {
+            throw new MojoExecutionException("Sync of WebDAV folder " + xmlFolderPath + " failed: " + e.getMessage(), e);
+        }
+        if (members == null) {
+            getLog().info("Server does not support sync-collection on " + xmlFolderPath + ", listing it");
+            syncState.remove(xmlFolderPath);
+            return listXmlFiles(hosts, xmlFolderPath);
+        }
+        return members;
+    }
+
+    /**
+     * @return the XML files of the folder after the sync, or null if the server does not support sync-collection
+     */
+    private List<WebdavResource> syncFolder(HostPool hosts, String xmlFolderPath, SyncState syncState) throws Exception {
+        Host host = hosts.primary();
+        io.milton.common.Path folderPath = io.milton.common.Path.path(xmlFolderPath);
+        SyncState.FolderState known = syncState.get(xmlFolderPath);
+        SyncCollectionResult result = known != null ? syncCollection(hosts, folderPath, known.syncToken) : null;
+        Map<String, WebdavResource> members;
+        if (result != null) {
+            members = known.members;
+            getLog().info("Sync of " + xmlFolderPath + ": " + result.getChanged().size() + " changed, "
+                    + result.getRemovedHrefs().size() + " removed");
+        } else {
+            // no token yet, or the server no longer accepts it: start over with an initial sync
+            result = syncCollection(hosts, folderPath, null);
+            if (result == null) {
+                return null;
+            }
+            members = new LinkedHashMap<>();
+            getLog().info("Initial sync of " + xmlFolderPath + ": " + result.getChanged().size() + " items");
+        }
+        for (PropFindResponse response : result.getChanged()) {
+            WebdavResource member = WebdavResource.of(response, host);
+            if (member != null) {
+                members.put(member.href, member);
+            }
+        }
+        result.getRemovedHrefs().forEach(members::remove);
+        syncState.put(xmlFolderPath, new SyncState.FolderState(result.getSyncToken(), members));
+        return members.values().stream().filter(WebdavResource::isXml).collect(Collectors.toList());
+    }
+
+    private static SyncCollectionResult syncCollection(HostPool hosts, io.milton.common.Path folderPath, String syncToken) throws Exception {
+        return hosts.callPrimary(host -> host.syncCollection(folderPath, syncToken, null), result -> 0);
+    }
+
+    private SyncState loadSyncState() {
+        if (!useSyncCollection) {
+            return null;
+        }
+        try {
+            return SyncState.load(Paths.get(syncStatePath));
+        } catch (IOException | RuntimeException e) {
+            getLog().warn("Ignoring unreadable sync state " + syncStatePath + ": " + e.getMessage());
+            return SyncState.empty(Paths.get(syncStatePath));
+        }
+    }
+
+    private void saveSyncState(SyncState syncState) {
+        if (syncState == null) {
+            return;
+        }
+        try {
+            syncState.save();
+        } catch (IOException e) {
+            getLog().warn("Could not save sync state " + syncStatePath + ": " + e.getMessage());
+        }
+    }
+
+    private List<Sample> createTemporaryLocalFiles(HostPool hosts, List<WebdavResource> webdavResources) throws MojoExecutionException {
+        List<Sample> samples = fetchSamples(hosts, webdavResources);
+        getLog().info("Total files to process: " + samples.size());
+        return samples;
+    }
+
+    /**
+     * Finds webdav resources to download, handing them over in batches as they are found.
+     */
+    @FunctionalInterface
+    interface Discovery {
+        void discover(Consumer<List<WebdavResource>> sink) throws MojoExecutionException;
+    }
+
+    /**
+     * Downloads the given resources to temporary local files, leaving out duplicates.
+     */
+    List<Sample> fetchSamples(HostPool hosts, List<WebdavResource> webdavResources) throws MojoExecutionException {
+        if (webdavResources.isEmpty()) {
+            getLog().warn("No XML files found to download");
+            return new ArrayList<>();
+        }
+        return fetchSamples(hosts, sink -> sink.accept(webdavResources));
+    }
+
+    /**
+     * Downloads the resources found by the discovery to temporary local files, leaving out duplicates. The discovery
+     * runs on a thread of its own, so the first downloads start as soon as the first resources are found rather than
+     * after the last. Should the discovery fail, the downloads it already started are finished and discarded.
+     */
+    List<Sample> fetchSamples(HostPool hosts, Discovery discovery) throws MojoExecutionException {
+        List<Sample> samples = new ArrayList<>();
+        // with adaptive concurrency the endpoint limits decide, the threads only have to be enough for them
+        int threads = adaptiveConcurrency ? Math.max(downloadThreads, maxConcurrentRequests) : downloadThreads;
+        ExecutorService discoverer = Executors.newSingleThreadExecutor();
+        try (DownloadPipeline pipeline = new DownloadPipeline(hosts, threads, maxInFlightBytes,
+                TimeUnit.SECONDS.toMillis(downloadTimeoutSeconds), TimeUnit.SECONDS.toMillis(downloadStallTimeoutSeconds),
+                TimeUnit.SECONDS.toMillis(downloadPhaseTimeoutSeconds), hedgeDownloads, getLog())) {
+            Future<?> discovered = discoverer.submit(() -> {
+                try {
+                    discovery.discover(webdavResources -> webdavResources.forEach(webdavResource -> submit(pipeline, webdavResource)));
+                    return null;
+                } finally {
+                    pipeline.complete();
+                }
+            });
+
+            Sample sample;
+            while ((sample = pipeline.next()) != null) {
+                if (isDuplicate(sample.file)) {
+                    sample.file.delete();
+                } else {
+                    samples.add(sample);
+                    getLog().debug("Added file to processing list: " + sample.file.getAbsolutePath());
+                }
+                pipeline.release(sample);
+            }
+            try {
+                discovered.get();
+            } catch (ExecutionException e) {
+                samples.forEach(fetched -> fetched.file.delete());
+                if (e.getCause() instanceof MojoExecutionException) {
+                    throw (MojoExecutionException) e.getCause();
+                }
+                throw new MojoExecutionException("Failed to find XML files", e.getCause());
+            }
+            pipeline.report();
+            if (pipeline.timedOutFiles() > 0) {
+                samples.forEach(fetched -> fetched.file.delete());
+                throw new MojoExecutionException(pipeline.timedOutFiles() + " XML files could not be downloaded in time, "
+                        + "see downloadTimeoutSeconds and downloadStallTimeoutSeconds");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while downloading XML files", e);
+        } finally {
+            discoverer.shutdownNow();
+        }
+        return samples;
+    }
+
+    private void submit(DownloadPipeline pipeline, WebdavResource webdavResource) {
+        if (webdavResource == null) {
+            getLog().warn("Skipping null WebDAV resource");
+            return;
+        }
+        if (deduplicator != null && deduplicator.isDuplicateResource(webdavResource)) {
+            getLog().debug("Skipping download of duplicate " + webdavResource.name);
+            return;
+        }
+        pipeline.submit(webdavResource);
+    }
+
+    private boolean isDuplicate(File file) {
+        if (deduplicator == null) {
+            return false;
+        }
+        try {
+            if (deduplicator.isDuplicateContent(file)) {
+                getLog().debug("Skipping duplicate sample " + file);
+                return true;
+            }
+        } catch (IOException e) {
+            getLog().warn("Could not hash " + file + ", keeping it: " + e.getMessage());
+        }
+        return false;
     }
 
     //TODO add error mail
@@ -0,0 +1,343 @@
+package com.actus.aif;
+
+import io.milton.httpclient.*;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Long running variant of the XmlToXsd goal for local development. Keeps one Host and the local copies of the
+ * samples alive and updates the schema whenever samples are added, changed or removed.
+ * <p>
+ * Webdav folders are polled with a depth 0 PROPFIND for their ETag and only listed again when it changed; only new
+ * or changed files are downloaded. Local files are watched with a {@link WatchService}. The schema is re-inferred
+ * from the local copies and xsdPath is only rewritten if the result differs from what is on disk.
+ * <p>
+ * Of the parameters of the XmlToXsd goal, deduplicateSamples and validateSamples are applied on every update.
+ * partitionBy is rejected; webdavMirrors, snapshotPath, useSyncCollection and useSearch are ignored with a warning,
+ * as the polling above takes their place.
+ */
+@Mojo(name = "watch")
+public class XmlToXsdWatchMojo extends XmlToXsdMojo {
+
+    /**
+     * seconds between two polls of the webdav folders
+     */
+    @Parameter(defaultValue = "30")
+    private int pollIntervalSeconds;
+
+    /**
+     * per folder, the ETag seen on the last poll
+     */
+    private final Map<String, String> folderEtags = new HashMap<>();
+
+    /**
+     * per folder, the local copies of its samples keyed by href
+     */
+    private final Map<String, Map<String, Sample>> folderSamples = new HashMap<>();
+
+    /**
+     * per href, the ETag of the local copy
+     */
+    private final Map<String, String> sampleEtags = new HashMap<>();
+
+    private final Set<Path> localFiles = new HashSet<>();
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        checkSupportedParameters();
+        List<String> schemaPaths = schemaPaths();
+        Host host = createHost();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            registerLocalFiles(watchService);
+            boolean changed = true; // the first round always generates
+            while (!Thread.currentThread().isInterrupted()) {
+                changed |= pollWebdav(host);
+                if (changed) {
+                    try {
+                        regenerate(schemaPaths);
+                    } catch (MojoExecutionException | IOException e) {
+                        // e.g. a sample saved half-written; the next change is tried again
+                        getLog().error("Could not update the schema, keeping the previous one: " + e.getMessage(), e);
+                    } catch (MojoFailureException e) {
+                        // invalid samples are reported, watching goes on
+                        getLog().error(e.getMessage());
+                    }
+                }
+                changed = awaitLocalChanges(watchService);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to watch XML samples", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fails on parameters that would change the output the watch goal produces, and warns about those it ignores.
+     */
+    private void checkSupportedParameters() throws MojoExecutionException {
+        if (isSet(partitionBy)) {
+            throw new MojoExecutionException("partitionBy is not supported by the watch goal");
+        }
+        if (webdavMirrors != null && !webdavMirrors.isEmpty()) {
+            getLog().warn("The watch goal only polls the primary webdav endpoint, ignoring webdavMirrors");
+        }
+        if (isSet(snapshotPath)) {
+            getLog().warn("The watch goal keeps its own copies of the samples, ignoring snapshotPath");
+        }
+        if (useSyncCollection || useSearch) {
+            getLog().warn("The watch goal polls the folder ETags, ignoring useSyncCollection and useSearch");
+        }
+    }
+
+    private static boolean isSet(String value) {
+        return value != null && !value.isEmpty();
+    }
+
+    private void registerLocalFiles(WatchService watchService) throws IOException {
+        if (localXmlFilePaths == null) {
+            return;
+        }
+        Set<Path> folders = new HashSet<>();
+        for (String localXmlFilePath : localXmlFilePaths) {
+            Path file = Paths.get(localXmlFilePath).toAbsolutePath().normalize();
+            localFiles.add(file);
+            if (file.getParent() != null && folders.add(file.getParent())) {
+                file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+    }
+
+    /**
+     * @return true if any sample in a webdav folder was added, changed or removed since the last poll
+     */
+    private boolean pollWebdav(Host host) throws MojoExecutionException {
+        boolean changed = false;
+        for (String xmlFolderPath : webdavXmlFolderPaths) {
+            String etag = folderEtag(host, xmlFolderPath);
+            if (etag != null && etag.equals(folderEtags.get(xmlFolderPath))) {
+                continue;
+            }
+            folderEtags.put(xmlFolderPath, etag);
+            try {
+                changed |= syncFolder(host, xmlFolderPath);
+            } catch (MojoExecutionException e) {
+                getLog().warn(e.getMessage() + ", trying again on the next poll");
+                folderEtags.remove(xmlFolderPath);
+            }
+        }
+        return changed;
+    }
+
+    private String folderEtag(Host host, String xmlFolderPath) {
+        try {
+            List<PropFindResponse> responses = host.propFind(io.milton.common.Path.path(xmlFolderPath), 0, RespUtils.davName("getetag"));
+            if (responses != null && !responses.isEmpty()) {
+                return responses.get(0).getEtag();
+            }
+        } catch (Exception e) {
+            getLog().debug("Could not read ETag of " + xmlFolderPath + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private boolean syncFolder(Host host, String xmlFolderPath) throws MojoExecutionException {
+        try {
+            Resource folder = host.find(xmlFolderPath, true);
+            if (folder instanceof Folder) {
+                ((Folder) folder).flush();
+            }
+        } catch (Exception e) {
+            getLog().debug("Could not refresh " + xmlFolderPath + ": " + e.getMessage());
+        }
+        Map<String, Sample> previous = folderSamples.getOrDefault(xmlFolderPath, new HashMap<>());
+        Map<String, Sample> current = new HashMap<>();
+        Map<String, String> downloadEtags = new HashMap<>();
+        List<WebdavResource> toDownload = new ArrayList<>();
+        for (WebdavResource resource : listXmlFiles(host, xmlFolderPath)) {
+            String href = resource.href;
+            String etag = resource.etag;
+            Sample known = previous.get(href);
+            if (known != null && etag != null && etag.equals(sampleEtags.get(href))) {
+                current.put(href, known);
+            } else {
+                toDownload.add(resource);
+                downloadEtags.put(href, etag);
+            }
+        }
+        List<Sample> fetched;
+        try {
+            fetched = fetchSamples(HostPool.of(host, getLog()), toDownload);
+        } catch (MojoExecutionException e) {
+            getLog().warn(e.getMessage());
+            fetched = new ArrayList<>();
+        }
+        boolean changed = false;
+        for (Sample sample : fetched) {
+            changed = true;
+            Sample replaced = previous.get(sample.source);
+            if (replaced != null) {
+                replaced.file.delete();
+            }
+            current.put(sample.source, sample);
+            sampleEtags.put(sample.source, downloadEtags.remove(sample.source));
+        }
+        // still on the server but not fetched: keep the previous copy and try again on the next poll
+        for (String href : downloadEtags.keySet()) {
+            getLog().warn("Could not fetch " + href + ", trying again on the next poll");
+            Sample kept = previous.get(href);
+            if (kept != null) {
+                current.put(href, kept);
+            }
+        }
+        if (!downloadEtags.isEmpty()) {
+            folderEtags.remove(xmlFolderPath);
+        }
+        for (Map.Entry<String, Sample> removed : previous.entrySet()) {
+            if (!current.containsKey(removed.getKey())) {
+                getLog().info("Sample removed: " + removed.getKey());
+                removed.getValue().file.delete();
+                sampleEtags.remove(removed.getKey());
+                changed = true;
+            }
+        }
+        folderSamples.put(xmlFolderPath, current);
+        return changed;
+    }
+
+    /**
+     * Waits for one poll interval.
+     *
+     * @return true if a configured local sample was created, modified or deleted meanwhile
+     */
+    private boolean awaitLocalChanges(WatchService watchService) throws InterruptedException {
+        boolean changed = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(pollIntervalSeconds);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            WatchKey key = watchService.poll(remaining, TimeUnit.NANOSECONDS);
+            if (key == null) {
+                break;
+            }
+            Path folder = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    changed = true;
+                    continue;
+                }
+                Path file = folder.resolve((Path) event.context()).toAbsolutePath().normalize();
+                if (localFiles.contains(file)) {
+                    getLog().info("Local sample changed: " + file);
+                    changed = true;
+                }
+            }
+            key.reset();
+        }
+        return changed;
+    }
+
+    /**
+     * Infers the schemas into a staging folder and copies them over the configured paths only if they differ, then
+     * validates the samples if configured.
+     */
+    private void regenerate(List<String> schemaPaths) throws IOException, MojoExecutionException, MojoFailureException {
+        List<Sample> samples = folderSamples.values()
+                .stream()
+                .flatMap(folder -> folder.values().stream())
+                .collect(Collectors.toList());
+        for (Path localFile : localFiles) {
+            if (Files.isRegularFile(localFile)) {
+                File file = localFile.toFile();
+                samples.add(new Sample(file.getName(), localFile.toString(), file, file.length(), 0, null));
+            }
+        }
+        if (deduplicateSamples) {
+            // the copies change between rounds, so duplicates are only told apart by their current content
+            SampleDeduplicator deduplicator = new SampleDeduplicator();
+            List<Sample> distinct = new ArrayList<>();
+            for (Sample sample : samples) {
+                if (!deduplicator.isDuplicateContent(sample.file)) {
+                    distinct.add(sample);
+                }
+            }
+            getLog().debug(deduplicator.summary());
+            samples = distinct;
+        }
+        if (samples.isEmpty()) {
+            getLog().warn("No XML files found to process. Please check your WebDAV paths and local XML file paths.");
+            return;
+        }
+
+        Path staging = Files.createTempDirectory("xsd-watch");
+        try {
+            List<Path> targets = new ArrayList<>();
+            List<String> stagedPaths = new ArrayList<>();
+            for (int i = 0; i < schemaPaths.size(); i++) {
+                Path target = Paths.get(schemaPaths.get(i)).toAbsolutePath();
+                targets.add(target);
+                stagedPaths.add(staging.resolve(Integer.toString(i)).resolve(target.getFileName()).toString());
+            }
+            List<String> filePaths = filePaths(samples);
+            generateSchemas(filePaths, stagedPaths);
+
+            boolean changed = false;
+            for (int i = 0; i < targets.size(); i++) {
+                for (Path file : list(staging.resolve(Integer.toString(i)))) {
+                    Path existing = targets.get(i).resolveSibling(file.getFileName());
+                    if (!Files.exists(existing) || Files.mismatch(file, existing) != -1) {
+                        changed = true;
+                    }
+                }
+            }
+            if (changed) {
+                for (int i = 0; i < targets.size(); i++) {
+                    Files.createDirectories(targets.get(i).getParent());
+                    for (Path file : list(staging.resolve(Integer.toString(i)))) {
+                        Files.copy(file, targets.get(i).resolveSibling(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                getLog().info("Schema updated from " + filePaths.size() + " XML files: " + targets);
+            } else {
+                getLog().info("Schema unchanged (" + filePaths.size() + " XML files)");
+            }
+            if (validateSamples) {
+                validateSamples(Map.of(xsdPath, samples));
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(staging)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private static List<Path> list(Path folder) throws IOException {
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+}
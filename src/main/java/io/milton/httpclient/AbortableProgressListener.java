@@ -0,0 +1,34 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.milton.httpclient;
+
+/**
+ * A ProgressListener that can also abort a transfer which is stuck waiting for
+ * data. {@link #isCancelled()} is only consulted when data arrives, so a
+ * stalled connection would otherwise block until the socket timeout.
+ */
+public interface AbortableProgressListener extends ProgressListener {
+
+    /**
+     * Called before the request is sent.
+     *
+     * @param abort aborts the request when run, from any thread
+     */
+    void onStart(Runnable abort);
+}
@@ -33,6 +33,13 @@ import io.milton.http.DateUtils;
 import io.milton.http.DateUtils.DateParseException;
 import java.io.*;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -44,14 +51,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.namespace.QName;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.*;
 import org.apache.http.auth.*;
 import org.apache.http.client.*;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
@@ -109,6 +119,10 @@ public class Host extends Folder {
             + "</D:lockinfo>";
     private static final Set<String> WEBDAV_REDIRECTABLE = new HashSet<>(Arrays.asList("PROPFIND", "LOCK", "UNLOCK", "DELETE"));
     private static final Logger log = LoggerFactory.getLogger(Host.class);
+    /**
+     * size of the direct buffer used to move a GET body into its target file
+     */
+    private static final int FILE_TRANSFER_BUFFER_SIZE = 1024 * 1024;
     public final String server;
     public final Integer port;
     public final String user;
@@ -126,6 +140,15 @@ public class Host extends Folder {
     private boolean usePreemptiveAuth = true;
     private boolean useDigestForPreemptiveAuth = true; // if true we will do pre-emptive auth with Digest, otherwise will use Basic
     private final Map<String, String> cookies = new HashMap<>();
+    /**
+     * cookies set by the server, shared by all requests when session reuse is
+     * on. BasicCookieStore is synchronized, so concurrent requests may use it
+     */
+    private final CookieStore sessionCookies = new BasicCookieStore();
+    private boolean reuseSession;
+    private volatile boolean sessionEstablished;
+    private final AtomicInteger authChallenges = new AtomicInteger();
+    private final AtomicInteger overloadResponses = new AtomicInteger();
 
     static {
 //    System.setProperty("org.apache.commons.logging.Log", "org.apache.commons.logging.impl.SimpleLog");
@@ -201,6 +224,7 @@ public class Host extends Folder {
         // be using the HttpClient.
         ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(schemeRegistry);
         cm.setMaxTotal(200);
+        cm.setDefaultMaxPerRoute(200); // concurrency is limited by the callers, not by 2 connections per server
 
         client = new MyDefaultHttpClient(cm, params);
         HttpRequestRetryHandler handler = new NoRetryHttpRequestRetryHandler();
@@ -235,6 +259,21 @@ public class Host extends Folder {
             PreemptiveAuthInterceptor interceptor = new PreemptiveAuthInterceptor();
             client.addRequestInterceptor(interceptor, 0);
         }
+        client.addResponseInterceptor((HttpResponseInterceptor) (response, context) -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_UNAUTHORIZED || status == HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED) {
+                authChallenges.incrementAndGet();
+                HttpRequest request = (HttpRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+                if (status == HttpStatus.SC_UNAUTHORIZED && request != null && !request.containsHeader("Authorization")) {
+                    // the session the cookies stood for has ended: send credentials up front again until a new one is set
+                    sessionEstablished = false;
+                }
+            } else if (status == 429 || status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                overloadResponses.incrementAndGet();
+            } else if (reuseSession && status < 400 && response.containsHeader("Set-Cookie")) {
+                sessionEstablished = true;
+            }
+        });
 
         if (proxyDetails != null) {
             if (proxyDetails.isUseSystemProxy()) {
@@ -576,7 +615,7 @@ public class Host extends Folder {
     public synchronized List<PropFindResponse> propFind(String path, int depth, QName... fields) throws IOException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException {
         List<QName> list = new ArrayList<>(Arrays.asList(fields));
         String href = baseHref() + rootPath + path;
-        log.info("propFind: href={}", href);
+        log.debug("propFind: href={}", href);
         return _doPropFind(href, depth, list);
     }
 
@@ -609,8 +648,13 @@ public class Host extends Folder {
      * @throws io.milton.httpclient.HttpException
      */
     public synchronized List<PropFindResponse> _doPropFind(final String url, final int depth, List<QName> fields) throws IOException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException {
-        log.info("doPropFind: " + url);
+        log.debug("doPropFind: " + url);
         notifyStartRequest();
+        final HttpRequestEvent event = HttpRequestEvent.start();
+        final HttpContext context = newContext();
+        final boolean[] reused = new boolean[1];
+        final int[] status = new int[1];
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
         final PropFindMethod m = new PropFindMethod(url);
         m.addHeader("Depth", depth + "");
         m.addHeader("Accept-Charset", "utf-8,*;q=0.1");
@@ -621,9 +665,10 @@ public class Host extends Folder {
             HttpEntity requestEntity = new StringEntity(propFindXml, "text/xml", "UTF-8");
             m.setEntity(requestEntity);
 
-            final ByteArrayOutputStream bout = new ByteArrayOutputStream();
             final List<PropFindResponse> responses = new ArrayList<>();
             ResponseHandler<Integer> respHandler = response -> {
+                reused[0] = event.isEnabled() && HttpRequestEvent.isConnectionReused(context);
+                status[0] = response.getStatusLine().getStatusCode();
                 Header serverDateHeader = response.getFirstHeader("Date");
                 if (response.getStatusLine().getStatusCode() == 207) {
                     HttpEntity entity = response.getEntity();
@@ -633,18 +678,7 @@ public class Host extends Folder {
                         //log.info("_doPropFind: res{}", s);
                         ByteArrayInputStream bin = new ByteArrayInputStream(bout.toByteArray());
                         Document document = getResponseAsDocument(bin);
-                        String sServerDate = null;
-                        if (serverDateHeader != null) {
-                            sServerDate = serverDateHeader.getValue();
-                        }
-                        Date serverDate = null;
-                        if (sServerDate != null && sServerDate.length() > 0) {
-                            try {
-                                serverDate = DateUtils.parseDate(sServerDate);
-                            } catch (DateParseException ex) {
-                                log.warn("Couldnt parse date header: " + sServerDate, ex);
-                            }
-                        }
+                        Date serverDate = parseServerDate(serverDateHeader);
                         //System.out.println("propfind: " + url);
                         buildResponses(document, serverDate, responses, depth);
 
@@ -652,8 +686,8 @@ public class Host extends Folder {
                 }
                 return response.getStatusLine().getStatusCode();
             };
-            Integer res = client.execute(m, respHandler, newContext());
-            log.info("_doPropFind: result code {}", res);
+            Integer res = client.execute(m, respHandler, context);
+            log.debug("_doPropFind: result code {}", res);
 
             Utils.processResultCode(res, url);
             return responses;
@@ -662,11 +696,231 @@ public class Host extends Folder {
         } catch (NotFoundException e) {
             log.trace("not found: " + url);
             return null;
+        } finally {
+            event.finish("PROPFIND", url, status[0], bout.size(), reused[0]);
+            notifyFinishRequest();
+        }
+    }
+
+    private Date parseServerDate(Header serverDateHeader) {
+        String sServerDate = null;
+        if (serverDateHeader != null) {
+            sServerDate = serverDateHeader.getValue();
+        }
+        Date serverDate = null;
+        if (sServerDate != null && sServerDate.length() > 0) {
+            try {
+                serverDate = DateUtils.parseDate(sServerDate);
+            } catch (DateParseException ex) {
+                log.warn("Couldnt parse date header: " + sServerDate, ex);
+            }
+        }
+        return serverDate;
+    }
+
+    /**
+     * Runs a sync-collection REPORT (RFC 6578) against the given collection,
+     * returning only what changed since the given token.
+     *
+     * @param path - unencoded path of the collection, relative to this Host's
+     * basePath
+     * @param syncToken - the token returned by the previous sync of this
+     * collection, or null for an initial sync which returns all members
+     * @param fields - the properties to return for added and changed members,
+     * or null to use default fields
+     * @return - the changes, or null if the server does not support
+     * sync-collection on this collection or no longer accepts the token. The
+     * caller must then fall back to a full listing or an initial sync. A
+     * response the server truncated (507) is completed by requesting the
+     * following pages with the token it returned
+     * @throws IOException
+     * @throws io.milton.httpclient.HttpException
+     * @throws NotAuthorizedException
+     * @throws BadRequestException
+     */
+    public SyncCollectionResult syncCollection(Path path, String syncToken, List<QName> fields) throws IOException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException {
+        final String url = buildEncodedUrl(path);
+        List<PropFindResponse> changed = new ArrayList<>();
+        List<String> removedHrefs = new ArrayList<>();
+        String token = syncToken;
+        while (true) {
+            boolean[] truncated = new boolean[1];
+            SyncCollectionResult page = syncCollectionPage(url, token, fields, truncated);
+            if (page == null) {
+                return null;
+            }
+            // a member reported again on a later page supersedes what an earlier page said about it
+            for (PropFindResponse response : page.getChanged()) {
+                removedHrefs.remove(response.getHref());
+                changed.removeIf(r -> r.getHref().equals(response.getHref()));
+                changed.add(response);
+            }
+            for (String href : page.getRemovedHrefs()) {
+                changed.removeIf(r -> r.getHref().equals(href));
+                removedHrefs.add(href);
+            }
+            if (!truncated[0]) {
+                return new SyncCollectionResult(page.getSyncToken(), changed, removedHrefs);
+            }
+            if (page.getSyncToken() == null || page.getSyncToken().equals(token)) {
+                log.warn("syncCollection: truncated response without a new sync-token: " + url);
+                return null;
+            }
+            log.info("syncCollection: response truncated, requesting the next page of " + url);
+            token = page.getSyncToken();
+        }
+    }
+
+    /**
+     * Sends one sync-collection REPORT.
+     *
+     * @param truncated - set to true if the server truncated the response
+     * @return - the changes in this response, or null as for syncCollection
+     */
+    private SyncCollectionResult syncCollectionPage(final String url, String syncToken, List<QName> fields, final boolean[] truncated) throws IOException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException {
+        log.info("syncCollection: " + url);
+        notifyStartRequest();
+        ReportMethod m = new ReportMethod(url);
+        m.addHeader("Accept-Charset", "utf-8,*;q=0.1");
+        m.addHeader("Accept", "text/xml");
+        try {
+            HttpEntity requestEntity = new StringEntity(buildSyncCollectionXml(syncToken, fields), "text/xml", "UTF-8");
+            m.setEntity(requestEntity);
+
+            final SyncCollectionResult[] result = new SyncCollectionResult[1];
+            final boolean[] invalidToken = new boolean[1];
+            ResponseHandler<Integer> respHandler = response -> {
+                int status = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+                if (status == 207 && entity != null) {
+                    Document document = getResponseAsDocument(entity.getContent());
+                    result[0] = buildSyncCollectionResult(document, parseServerDate(response.getFirstHeader("Date")), truncated);
+                } else if (status == 403 && entity != null) {
+                    try {
+                        Document document = getResponseAsDocument(entity.getContent());
+                        invalidToken[0] = document.getRootElement().getChild("valid-sync-token", RespUtils.NS_DAV) != null;
+                    } catch (RuntimeException ex) {
+                        log.trace("403 without a precondition element: " + url);
+                    }
+                }
+                return status;
+            };
+            int res = client.execute(m, respHandler, newContext());
+            log.info("syncCollection: result code {}", res);
+            if (res == 403 && !invalidToken[0]) {
+                Utils.processResultCode(res, url); // a real authorization failure
+            }
+            switch (res) {
+                case 207:
+                    return result[0];
+                case 400: // unsupported report
+                case 403: // DAV:valid-sync-token precondition failed, ie the token has expired
+                case 405:
+                case 409:
+                case 415:
+                case 501:
+                    return null;
+                default:
+                    Utils.processResultCode(res, url);
+                    return null;
+            }
+        } catch (ConflictException ex) {
+            throw new RuntimeException(ex);
+        } catch (NotFoundException e) {
+            log.trace("not found: " + url);
+            return null;
+        } finally {
+            notifyFinishRequest();
+        }
+    }
+
+    /**
+     * Asks the server for the XML resources under the given scopes with a
+     * DASL basicsearch (RFC 5323), so that other resources never have to be
+     * listed. A resource matches if its name ends in .xml or its content type
+     * is application/xml or text/xml.
+     *
+     * @param scopes - unencoded paths of the collections to search, relative to
+     * this Host's basePath
+     * @param depth - "1" for the immediate members of the scopes, "infinity"
+     * for all descendants
+     * @param modifiedSince - if not null, only resources modified after this
+     * instant match
+     * @param fields - the properties to return, or null to use default fields
+     * @return - the matching resources, or null if the server does not support
+     * SEARCH. The caller must then fall back to PROPFIND
+     * @throws IOException
+     * @throws io.milton.httpclient.HttpException
+     * @throws NotAuthorizedException
+     * @throws BadRequestException
+     */
+    public List<PropFindResponse> searchXml(List<Path> scopes, String depth, Date modifiedSince, List<QName> fields) throws IOException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException {
+        final String url = encodedUrl();
+        log.info("searchXml: " + url + " scopes=" + scopes);
+        notifyStartRequest();
+        SearchMethod m = new SearchMethod(url);
+        m.addHeader("Accept-Charset", "utf-8,*;q=0.1");
+        m.addHeader("Accept", "text/xml");
+        try {
+            HttpEntity requestEntity = new StringEntity(buildSearchXml(scopes, depth, modifiedSince, fields), "text/xml", "UTF-8");
+            m.setEntity(requestEntity);
+
+            final List<PropFindResponse> responses = new ArrayList<>();
+            ResponseHandler<Integer> respHandler = response -> {
+                int status = response.getStatusLine().getStatusCode();
+                HttpEntity entity = response.getEntity();
+                if (status == 207 && entity != null) {
+                    Document document = getResponseAsDocument(entity.getContent());
+                    Date serverDate = parseServerDate(response.getFirstHeader("Date"));
+                    for (Element el : RespUtils.getElements(document.getRootElement(), "response")) {
+                        responses.add(new PropFindResponse(serverDate, el));
+                    }
+                }
+                return status;
+            };
+            int res = client.execute(m, respHandler, newContext());
+            log.info("searchXml: result code {}", res);
+            switch (res) {
+                case 207:
+                    return responses;
+                case 400: // query grammar or scope not supported
+                case 403:
+                case 405:
+                case 415:
+                case 422:
+                case 501:
+                    return null;
+                default:
+                    Utils.processResultCode(res, url);
+                    return null;
+            }
+        } catch (ConflictException ex) {
+            throw new RuntimeException(ex);
+        } catch (NotFoundException e) {
+            log.trace("not found: " + url);
+            return null;
         } finally {
             notifyFinishRequest();
         }
     }
 
+    private SyncCollectionResult buildSyncCollectionResult(Document document, Date serverDate, boolean[] truncated) {
+        Element root = document.getRootElement();
+        List<PropFindResponse> changed = new ArrayList<>();
+        List<String> removedHrefs = new ArrayList<>();
+        for (Element el : RespUtils.getElements(root, "response")) {
+            String status = el.getChildText("status", RespUtils.NS_DAV);
+            if (status != null && status.contains(" 507")) { // the collection itself, marking a truncated response
+                truncated[0] = true;
+            } else if (status != null && status.contains(" 404")) { // removed members carry a 404 status instead of a propstat
+                removedHrefs.add(el.getChildTextTrim("href", RespUtils.NS_DAV));
+            } else {
+                changed.add(new PropFindResponse(serverDate, el));
+            }
+        }
+        return new SyncCollectionResult(root.getChildTextTrim("sync-token", RespUtils.NS_DAV), changed, removedHrefs);
+    }
+
     /**
      *
      * @return - child responses only, not the requested url
@@ -705,13 +959,53 @@ public class Host extends Folder {
      * @throws io.milton.httpclient.Utils.CancelledException
      */
     public synchronized void doGet(String url, StreamReceiver receiver, List<Range> rangeList, ProgressListener listener) throws io.milton.httpclient.HttpException, Utils.CancelledException, NotAuthorizedException, BadRequestException, ConflictException, NotFoundException {
-        transferService.get(url, receiver, rangeList, listener, newContext());
+        final HttpRequestEvent event = HttpRequestEvent.start();
+        final HttpContext context = newContext();
+        final boolean[] reused = new boolean[1];
+        final CountingInputStream[] body = new CountingInputStream[1];
+        try {
+            transferService.get(url, in -> {
+                reused[0] = event.isEnabled() && HttpRequestEvent.isConnectionReused(context);
+                body[0] = new CountingInputStream(in);
+                receiver.receive(body[0]);
+            }, rangeList, listener, context);
+        } finally {
+            event.finish("GET", url, HttpRequestEvent.status(context), body[0] != null ? body[0].getByteCount() : 0, reused[0]);
+        }
+    }
+
+    /**
+     *
+     * @param path - the path to get, relative to the base path of the host
+     * @param file - the file to write content to
+     * @param listener
+     * @throws IOException
+     * @throws NotFoundException
+     * @throws io.milton.httpclient.HttpException
+     * @throws io.milton.httpclient.Utils.CancelledException
+     * @throws NotAuthorizedException
+     * @throws BadRequestException
+     * @throws ConflictException
+     */
+    public void doGet(Path path, final java.io.File file, ProgressListener listener) throws IOException, NotFoundException, io.milton.httpclient.HttpException, CancelledException, NotAuthorizedException, BadRequestException, ConflictException {
+        doGet(path, file, null, listener);
     }
 
     /**
+     * Downloads the resource into the given file. The body is moved from the
+     * entity stream into a FileChannel through a large direct buffer, the
+     * target is preallocated from the Content-Length (or expectedLength if
+     * the server does not send one) and the content is written to a temporary
+     * file next to the target which is then moved into place, so the target
+     * never holds a partial download.
+     *
+     * Unlike most methods of this class this one does not lock the Host, the
+     * connection manager is thread safe so downloads may run concurrently.
      *
      * @param path - the path to get, relative to the base path of the host
      * @param file - the file to write content to
+     * @param expectedLength - the length reported by PROPFIND, or null if
+     * unknown. Only used when the response has no Content-Length
      * @param listener
      * @throws IOException
      * @throws NotFoundException
@@ -721,27 +1015,120 @@ public class Host extends Folder {
      * @throws BadRequestException
      * @throws ConflictException
      */
-    public synchronized void doGet(Path path, final java.io.File file, ProgressListener listener) throws IOException, NotFoundException, io.milton.httpclient.HttpException, CancelledException, NotAuthorizedException, BadRequestException, ConflictException {
+    public void doGet(Path path, final java.io.File file, final Long expectedLength, final ProgressListener listener) throws IOException, NotFoundException, io.milton.httpclient.HttpException, CancelledException, NotAuthorizedException, BadRequestException, ConflictException {
         LogUtils.trace(log, "doGet", path);
         if (fileSyncer != null) {
-            fileSyncer.download(this, path, file, listener);
-        } else {
-            String url = this.buildEncodedUrl(path);
-            transferService.get(url, in -> {
-                OutputStream out = null;
-                BufferedOutputStream bout = null;
-                try {
-                    out = FileUtils.openOutputStream(file);
-                    bout = new BufferedOutputStream(out);
-                    IOUtils.copy(in, bout);
-                    bout.flush();
-                } finally {
-                    IOUtils.closeQuietly(bout);
-                    IOUtils.closeQuietly(out);
+            synchronized (this) {
+                fileSyncer.download(this, path, file, listener);
+            }
+            return;
+        }
+        final String url = this.buildEncodedUrl(path);
+        final String name = path.getName();
+        notifyStartRequest();
+        final HttpRequestEvent event = HttpRequestEvent.start();
+        final HttpContext context = newContext();
+        final boolean[] reused = new boolean[1];
+        final int[] statuses = new int[1];
+        final HttpGet m = new HttpGet(url);
+        try {
+            ResponseHandler<Integer> respHandler = response -> {
+                reused[0] = event.isEnabled() && HttpRequestEvent.isConnectionReused(context);
+                int status = response.getStatusLine().getStatusCode();
+                statuses[0] = status;
+                HttpEntity entity = response.getEntity();
+                if (status >= 200 && status < 300 && entity != null) {
+                    long length = entity.getContentLength();
+                    if (length < 0 && expectedLength != null) {
+                        length = expectedLength;
+                    }
+                    try {
+                        transferToFile(entity.getContent(), file, length, name, listener);
+                    } catch (CancelledException ex) {
+                        m.abort(); // dont drain the rest of the body
+                        throw ex;
+                    }
+                }
+                return status;
+            };
+            if (listener instanceof AbortableProgressListener) {
+                ((AbortableProgressListener) listener).onStart(m::abort);
+            }
+            Integer res;
+            try {
+                res = client.execute(m, respHandler, context);
+            } catch (IOException ex) {
+                if (listener != null && listener.isCancelled() && !(ex instanceof CancelledException)) {
+                    throw new CancelledException(); // aborted while waiting for data
                 }
+                throw ex;
+            }
+            Utils.processResultCode(res, url);
+            if (listener != null) {
+                listener.onComplete(name);
+            }
+        } finally {
+            event.finish("GET", url, statuses[0], file.length(), reused[0]);
+            notifyFinishRequest();
+        }
+    }
 
-            }, null, listener, newContext());
+    private static void transferToFile(InputStream in, java.io.File file, long length, String name, ProgressListener listener) throws IOException {
+        java.io.File target = file.getAbsoluteFile();
+        FileUtils.forceMkdir(target.getParentFile());
+        java.nio.file.Path tmp = Files.createTempFile(target.getParentFile().toPath(), "." + target.getName(), ".part");
+        boolean done = false;
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(tmp.toFile(), "rw");
+                    FileChannel out = raf.getChannel();
+                    ReadableByteChannel src = Channels.newChannel(in)) {
+                if (length > 0) {
+                    raf.setLength(length);
+                }
+                ByteBuffer buf = ByteBuffer.allocateDirect(FILE_TRANSFER_BUFFER_SIZE);
+                long position = 0;
+                int n;
+                while ((n = src.read(buf)) >= 0) {
+                    if (listener != null) {
+                        if (listener.isCancelled()) {
+                            throw new CancelledException();
+                        }
+                        listener.onRead(n);
+                    }
+                    if (!buf.hasRemaining()) {
+                        position += drain(buf, out, position);
+                        if (listener != null) {
+                            listener.onProgress(position, length > 0 ? length : null, name);
+                        }
+                    }
+                }
+                position += drain(buf, out, position);
+                out.truncate(position); // in case the body was shorter than announced
+                if (listener != null) {
+                    listener.onProgress(position, length > 0 ? length : null, name);
+                }
+            }
+            try {
+                Files.move(tmp, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    private static long drain(ByteBuffer buf, FileChannel out, long position) throws IOException {
+        buf.flip();
+        long written = 0;
+        while (buf.hasRemaining()) {
+            written += out.write(buf, position + written);
         }
+        buf.clear();
+        return written;
     }
 
     public synchronized byte[] doGet(Path path) throws IOException, NotFoundException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException, ConflictException {
@@ -750,20 +1137,86 @@ public class Host extends Folder {
 
     public synchronized byte[] doGet(Path path, Map<String, String> queryParams) throws IOException, NotFoundException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException, ConflictException {
         LogUtils.trace(log, "doGet", path);
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        doGet(path, bout, queryParams);
-        return bout.toByteArray();
+        return getBody(buildGetUrl(path, queryParams)).toByteArrayNoCopy();
+    }
 
+    /**
+     * GET the contents of the given path into a buffer sized from the
+     * Content-Length of the response. The returned buffer is a read-only view
+     * of the array the body was read into, so no copy is made and it can be
+     * handed straight to a parser.
+     *
+     * Does not lock the Host, so may be called concurrently.
+     *
+     * @param path - the path to get, relative to the base path of the host
+     * @param queryParams - query parameters to append, or null
+     * @return - a read-only buffer positioned at the start of the body
+     */
+    public ByteBuffer doGetBuffer(Path path, Map<String, String> queryParams) throws IOException, NotFoundException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException, ConflictException {
+        LogUtils.trace(log, "doGetBuffer", path);
+        return getBody(buildGetUrl(path, queryParams)).toByteBuffer();
     }
 
-    public synchronized void doGet(Path path, final OutputStream out, Map<String, String> queryParams) throws IOException, NotFoundException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException, ConflictException {
+    private String buildGetUrl(Path path, Map<String, String> queryParams) {
         String url = this.buildEncodedUrl(path);
-        LogUtils.trace(log, "doGet", url);
         if (queryParams != null && queryParams.size() > 0) {
             String qs = Utils.format(queryParams, "UTF-8");
             url += "?" + qs;
         }
-        transferService.get(url, in -> IOUtils.copy(in, out), null, null, newContext());
+        return url;
+    }
+
+    /**
+     *
+     * @param url - fully qualified and encoded URL
+     * @return - the body, read into a buffer presized from the Content-Length
+     */
+    private BodyOutputStream getBody(final String url) throws IOException, NotFoundException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException, ConflictException {
+        notifyStartRequest();
+        final HttpRequestEvent event = HttpRequestEvent.start();
+        final HttpContext context = newContext();
+        final boolean[] reused = new boolean[1];
+        final int[] statuses = new int[1];
+        final BodyOutputStream[] body = new BodyOutputStream[1];
+        HttpGet m = new HttpGet(url);
+        try {
+            ResponseHandler<Integer> respHandler = response -> {
+                reused[0] = event.isEnabled() && HttpRequestEvent.isConnectionReused(context);
+                int status = response.getStatusLine().getStatusCode();
+                statuses[0] = status;
+                HttpEntity entity = response.getEntity();
+                if (status >= 200 && status < 300 && entity != null) {
+                    body[0] = new BodyOutputStream(entity.getContentLength());
+                    try (InputStream in = entity.getContent()) {
+                        body[0].readFrom(in);
+                    }
+                }
+                return status;
+            };
+            Integer res = client.execute(m, respHandler, context);
+            Utils.processResultCode(res, url);
+            return body[0] != null ? body[0] : new BodyOutputStream(0);
+        } finally {
+            event.finish("GET", url, statuses[0], body[0] != null ? body[0].size() : 0, reused[0]);
+            notifyFinishRequest();
+        }
+    }
+
+    public synchronized void doGet(Path path, final OutputStream out, Map<String, String> queryParams) throws IOException, NotFoundException, io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException, ConflictException {
+        String url = buildGetUrl(path, queryParams);
+        LogUtils.trace(log, "doGet", url);
+        final HttpRequestEvent event = HttpRequestEvent.start();
+        final HttpContext context = newContext();
+        final boolean[] reused = new boolean[1];
+        final long[] bytes = new long[1];
+        try {
+            transferService.get(url, in -> {
+                reused[0] = event.isEnabled() && HttpRequestEvent.isConnectionReused(context);
+                bytes[0] = IOUtils.copyLarge(in, out);
+            }, null, null, context);
+        } finally {
+            event.finish("GET", url, HttpRequestEvent.status(context), bytes[0], reused[0]);
+        }
     }
 
     /**
@@ -821,19 +1274,11 @@ public class Host extends Folder {
      */
     public synchronized byte[] get(Path path) throws io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException, ConflictException, NotFoundException {
         String url = buildEncodedUrl(path);
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            transferService.get(url, in -> {
-                try {
-                    IOUtils.copy(in, out);
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }, null, null, newContext());
-        } catch (CancelledException ex) {
-            throw new RuntimeException("Should never happen because no progress listener is set", ex);
+            return getBody(url).toByteArrayNoCopy();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
         }
-        return out.toByteArray();
     }
 
     /**
@@ -850,19 +1295,11 @@ public class Host extends Folder {
      */
     public synchronized byte[] get(String path) throws io.milton.httpclient.HttpException, NotAuthorizedException, BadRequestException, ConflictException, NotFoundException {
         String url = this.encodedUrl() + path;
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            transferService.get(url, in -> {
-                try {
-                    IOUtils.copy(in, out);
-                } catch (IOException ex) {
-                    throw new RuntimeException(ex);
-                }
-            }, null, null, newContext());
-        } catch (CancelledException ex) {
-            throw new RuntimeException("Should never happen because no progress listener is set", ex);
+            return getBody(url).toByteArrayNoCopy();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
         }
-        return out.toByteArray();
     }
 
     /**
@@ -1048,6 +1485,40 @@ public class Host extends Folder {
         cookies.put(name, value);
     }
 
+    public boolean isReuseSession() {
+        return reuseSession;
+    }
+
+    /**
+     * If true, cookies set by the server are kept and sent with all later
+     * requests, from any thread. Once the server has set a session cookie,
+     * requests are no longer authenticated preemptively, so the server can
+     * recognize the client by its session instead of checking the password on
+     * every request; should the session expire, the server's challenge is
+     * answered as usual.
+     *
+     * @param reuseSession
+     */
+    public void setReuseSession(boolean reuseSession) {
+        this.reuseSession = reuseSession;
+    }
+
+    /**
+     * @return the number of 401 and 407 responses received, each of which
+     * costs an authentication round-trip
+     */
+    public int getAuthChallengeCount() {
+        return authChallenges.get();
+    }
+
+    /**
+     * @return the number of 429 and 503 responses received, with which the
+     * server asks for fewer requests
+     */
+    public int getOverloadResponseCount() {
+        return overloadResponses.get();
+    }
+
     private void notifyStartRequest() {
         for (ConnectionListener l : connectionListeners) {
             l.onStartRequest();
@@ -1110,6 +1581,84 @@ public class Host extends Folder {
         }
     }
 
+    private String buildSyncCollectionXml(String syncToken, List<QName> fields) {
+        try {
+            if (fields == null) {
+                fields = defaultFields;
+            }
+            Element elSync = new Element("sync-collection", RespUtils.NS_DAV);
+            Document doc = new Document(elSync);
+            Element elToken = new Element("sync-token", RespUtils.NS_DAV);
+            if (syncToken != null) {
+                elToken.setText(syncToken);
+            }
+            elSync.addContent(elToken);
+            Element elLevel = new Element("sync-level", RespUtils.NS_DAV);
+            elLevel.setText("1");
+            elSync.addContent(elLevel);
+            Element elProp = new Element("prop", RespUtils.NS_DAV);
+            elSync.addContent(elProp);
+            for (QName qn : fields) {
+                Element elName = new Element(qn.getLocalPart(), qn.getPrefix(), qn.getNamespaceURI());
+                elProp.addContent(elName);
+            }
+            XMLOutputter outputter = new XMLOutputter();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            outputter.output(doc, out);
+            return out.toString("UTF-8");
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private String buildSearchXml(List<Path> scopes, String depth, Date modifiedSince, List<QName> fields) {
+        try {
+            if (fields == null) {
+                fields = defaultFields;
+            }
+            Element elRequest = new Element("searchrequest", RespUtils.NS_DAV);
+            Document doc = new Document(elRequest);
+            Element elSearch = davChild(elRequest, "basicsearch");
+            Element elProp = davChild(davChild(elSearch, "select"), "prop");
+            for (QName qn : fields) {
+                Element elName = new Element(qn.getLocalPart(), qn.getPrefix(), qn.getNamespaceURI());
+                elProp.addContent(elName);
+            }
+            Element elFrom = davChild(elSearch, "from");
+            for (Path scope : scopes) {
+                Element elScope = davChild(elFrom, "scope");
+                davChild(elScope, "href").setText(buildEncodedUrl(scope));
+                davChild(elScope, "depth").setText(depth);
+            }
+            Element elWhere = davChild(elSearch, "where");
+            Element elMatch = modifiedSince != null ? davChild(davChild(elWhere, "and"), "or") : davChild(elWhere, "or");
+            searchCondition(elMatch, "like", "displayname", "%.xml");
+            searchCondition(elMatch, "eq", "getcontenttype", "application/xml");
+            searchCondition(elMatch, "eq", "getcontenttype", "text/xml");
+            if (modifiedSince != null) {
+                searchCondition(elMatch.getParentElement(), "gt", "getlastmodified", modifiedSince.toInstant().toString());
+            }
+            XMLOutputter outputter = new XMLOutputter();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            outputter.output(doc, out);
+            return out.toString("UTF-8");
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static Element davChild(Element parent, String name) {
+        Element child = new Element(name, RespUtils.NS_DAV);
+        parent.addContent(child);
+        return child;
+    }
+
+    private static void searchCondition(Element parent, String operator, String property, String literal) {
+        Element elOperator = davChild(parent, operator);
+        davChild(davChild(elOperator, "prop"), property);
+        davChild(elOperator, "literal").setText(literal);
+    }
+
     public boolean isUseDigestForPreemptiveAuth() {
         return useDigestForPreemptiveAuth;
     }
@@ -1128,7 +1677,7 @@ public class Host extends Folder {
 
     protected HttpContext newContext() {
         HttpContext context = new BasicHttpContext();
-        if (usePreemptiveAuth) {
+        if (usePreemptiveAuth && !(reuseSession && sessionEstablished)) {
             AuthScheme authScheme;
             if (useDigestForPreemptiveAuth) {
                 authScheme = new DigestScheme();
@@ -1137,7 +1686,7 @@ public class Host extends Folder {
             }
             context.setAttribute("preemptive-auth", authScheme);
         }
-        CookieStore cookieStore = new BasicCookieStore();
+        CookieStore cookieStore = reuseSession ? sessionCookies : new BasicCookieStore();
         for (Entry<String, String> entry : cookies.entrySet()) {
             BasicClientCookie cookie = new BasicClientCookie(entry.getKey(), entry.getValue());
             cookie.setDomain(this.server);
@@ -1151,8 +1700,10 @@ public class Host extends Folder {
 
     static class PreemptiveAuthInterceptor implements HttpRequestInterceptor {
 
-        private String nonce;
-        private String realm;
+        // shared by all contexts and threads, so that a nonce obtained by one
+        // request is reused by the next instead of costing another challenge
+        private volatile String nonce;
+        private volatile String realm;
 
         public PreemptiveAuthInterceptor() {
         }
@@ -1204,6 +1755,53 @@ public class Host extends Folder {
         }
     }
 
+    /**
+     * Collects a response body. Starts out at the announced Content-Length
+     * and reads straight into its own array, so a body of known length is
+     * read with one allocation and handed out without a final copy.
+     */
+    static class BodyOutputStream extends ByteArrayOutputStream {
+
+        /**
+         * the largest array the JVM reliably allocates
+         */
+        static final int MAX_BODY_BYTES = Integer.MAX_VALUE - 8;
+
+        BodyOutputStream(long expectedLength) {
+            super(expectedLength >= 0 && expectedLength < MAX_BODY_BYTES ? (int) expectedLength : 8192);
+        }
+
+        void readFrom(InputStream in) throws IOException {
+            while (true) {
+                if (count == buf.length) {
+                    // probe before growing, so an exact Content-Length never reallocates
+                    int b = in.read();
+                    if (b < 0) {
+                        return;
+                    }
+                    if (buf.length >= MAX_BODY_BYTES) {
+                        throw new IOException("Response body exceeds " + MAX_BODY_BYTES + " bytes and cannot be held in memory, download it to a file");
+                    }
+                    buf = Arrays.copyOf(buf, Math.max(8192, (int) Math.min(MAX_BODY_BYTES, buf.length * 2L)));
+                    buf[count++] = (byte) b;
+                }
+                int n = in.read(buf, count, buf.length - count);
+                if (n < 0) {
+                    return;
+                }
+                count += n;
+            }
+        }
+
+        byte[] toByteArrayNoCopy() {
+            return count == buf.length ? buf : toByteArray();
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count).asReadOnlyBuffer();
+        }
+    }
+
     static class NoRetryHttpRequestRetryHandler implements HttpRequestRetryHandler {
 
         @Override
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.milton.httpclient;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+/**
+ * Flight Recorder event for one request made by a {@link Host}. The fields are
+ * only filled in when the event is recorded, so an instance costs next to
+ * nothing while no recording is running.
+ */
+@Name("io.milton.httpclient.HttpRequest")
+@Label("WebDAV Request")
+@Category("WebDAV")
+public class HttpRequestEvent extends Event {
+
+    @Label("Method")
+    public String method;
+
+    @Label("URL")
+    public String url;
+
+    @Label("Status")
+    @Description("HTTP status code, 0 if no response was received or it is not known")
+    public int status;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Connection Reused")
+    @Description("Whether the request went over a pooled connection that had served requests before")
+    public boolean connectionReused;
+
+    /**
+     * Starts timing a request.
+     */
+    public static HttpRequestEvent start() {
+        HttpRequestEvent event = new HttpRequestEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the request and records it if a recording wants it.
+     */
+    public void finish(String method, String url, int status, long bytes, boolean connectionReused) {
+        end();
+        if (shouldCommit()) {
+            this.method = method;
+            this.url = url;
+            this.status = status;
+            this.bytes = bytes;
+            this.connectionReused = connectionReused;
+            commit();
+        }
+    }
+
+    /**
+     * @return whether the connection of the given request context had served
+     * an earlier request; must be called while the response is being handled
+     */
+    static boolean isConnectionReused(HttpContext context) {
+        Object connection = context.getAttribute(HttpCoreContext.HTTP_CONNECTION);
+        if (connection instanceof HttpConnection) {
+            try {
+                return ((HttpConnection) connection).getMetrics().getRequestCount() > 1;
+            } catch (RuntimeException e) {
+                return false; // already released
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the status code of the response received in the given request
+     * context, 0 if there was none
+     */
+    static int status(HttpContext context) {
+        Object response = context.getAttribute(HttpCoreContext.HTTP_RESPONSE);
+        if (response instanceof HttpResponse) {
+            return ((HttpResponse) response).getStatusLine().getStatusCode();
+        }
+        return 0;
+    }
+}
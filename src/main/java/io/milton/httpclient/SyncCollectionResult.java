@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.milton.httpclient;
+
+import java.util.List;
+
+/**
+ * The outcome of a sync-collection REPORT (RFC 6578): the members added or
+ * changed since the token that was sent, the hrefs of members removed since
+ * then, and the token to send next time
+ *
+ */
+public class SyncCollectionResult {
+
+    private final String syncToken;
+    private final List<PropFindResponse> changed;
+    private final List<String> removedHrefs;
+
+    public SyncCollectionResult(String syncToken, List<PropFindResponse> changed, List<String> removedHrefs) {
+        this.syncToken = syncToken;
+        this.changed = changed;
+        this.removedHrefs = removedHrefs;
+    }
+
+    /**
+     * @return the token identifying the state of the collection this result
+     * brings the caller up to
+     */
+    public String getSyncToken() {
+        return syncToken;
+    }
+
+    /**
+     * @return members added or changed since the previous token, or all
+     * members if no token was sent
+     */
+    public List<PropFindResponse> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return encoded hrefs of members removed since the previous token
+     */
+    public List<String> getRemovedHrefs() {
+        return removedHrefs;
+    }
+}
@@ -0,0 +1,115 @@
+package com.actus.aif;
+
+import io.milton.common.Path;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads through {@link DownloadPipeline} from a {@link FakeWebdavServer} that answers slowly or not at all.
+ */
+public class DownloadPipelineTest {
+
+    private static final String CONTENT = "<samples><sample id=\"1\">one</sample><sample id=\"2\">two</sample></samples>";
+
+    private FakeWebdavServer server;
+    private HostPool hosts;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new FakeWebdavServer().put("/samples/a.xml", CONTENT).put("/samples/b.xml", CONTENT);
+        hosts = HostPool.of(server.host(null, null), new SystemStreamLog());
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void fetchesAllSubmittedResources() throws Exception {
+        try (DownloadPipeline pipeline = pipeline(0, 0)) {
+            List<Sample> samples = download(pipeline, "a.xml", "b.xml");
+
+            assertEquals(2, samples.size());
+            for (Sample sample : samples) {
+                assertEquals(CONTENT, Files.readString(sample.file.toPath()));
+                sample.file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void stalledDownloadTimesOut() throws Exception {
+        server.stallDownloads(5000);
+        try (DownloadPipeline pipeline = pipeline(0, 300)) {
+            List<Sample> samples = download(pipeline, "a.xml");
+
+            assertTrue(samples.isEmpty());
+            assertEquals(1, pipeline.timedOutFiles());
+        }
+    }
+
+    @Test
+    public void slowButProgressingDownloadIsKept() throws Exception {
+        server.stallDownloads(200).delayResponses(200);
+        try (DownloadPipeline pipeline = pipeline(0, 2000)) {
+            List<Sample> samples = download(pipeline, "a.xml");
+
+            assertEquals(1, samples.size());
+            assertEquals(0, pipeline.timedOutFiles());
+            samples.get(0).file.delete();
+        }
+    }
+
+    @Test
+    public void downloadPastItsDeadlineTimesOut() throws Exception {
+        server.delayResponses(2000);
+        try (DownloadPipeline pipeline = pipeline(300, 0)) {
+            List<Sample> samples = download(pipeline, "a.xml");
+
+            assertTrue(samples.isEmpty());
+            assertEquals(1, pipeline.timedOutFiles());
+        }
+    }
+
+    @Test
+    public void overloadedServerIsNotFatalForOtherDownloads() throws Exception {
+        server.failNext(429);
+        try (DownloadPipeline pipeline = pipeline(0, 0)) {
+            List<Sample> samples = download(pipeline, "a.xml", "b.xml");
+
+            assertEquals(1, samples.size());
+            assertEquals(0, pipeline.timedOutFiles());
+            samples.get(0).file.delete();
+        }
+    }
+
+    private DownloadPipeline pipeline(long requestTimeoutMillis, long stallTimeoutMillis) {
+        return new DownloadPipeline(hosts, 2, 1024 * 1024, requestTimeoutMillis, stallTimeoutMillis, 0, false,
+                new SystemStreamLog());
+    }
+
+    private static List<Sample> download(DownloadPipeline pipeline, String... names) throws InterruptedException {
+        for (String name : names) {
+            Path path = Path.path("samples/" + name);
+            pipeline.submit(new WebdavResource(name, "/samples/" + name, path, null, (long) CONTENT.length(), "application/xml"));
+        }
+        pipeline.complete();
+        List<Sample> samples = new ArrayList<>();
+        Sample sample;
+        while ((sample = pipeline.next()) != null) {
+            samples.add(sample);
+            pipeline.release(sample);
+        }
+        return samples;
+    }
+}
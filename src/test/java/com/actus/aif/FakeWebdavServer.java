@@ -0,0 +1,573 @@
+package com.actus.aif;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.milton.httpclient.Host;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * An in-memory WebDAV server on a local port, speaking just enough of PROPFIND, GET, PUT, sync-collection REPORT and
+ * SEARCH for the plugin, with injectable failures: error responses, authentication challenges, slow and stalling
+ * responses. For load tests it can cap its bandwidth and generate folders with thousands of files.
+ * <p>
+ * Every PUT or delete advances the version of the collection; sync tokens are {@code v<version>}.
+ */
+final class FakeWebdavServer implements AutoCloseable {
+
+    private static final String MULTISTATUS_START = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<d:multistatus xmlns:d=\"DAV:\">\n";
+    private static final String MULTISTATUS_END = "</d:multistatus>\n";
+    private static final int GET_CHUNK_BYTES = 16 * 1024;
+
+    /**
+     * A request as the server received it.
+     */
+    static final class RecordedRequest {
+
+        final String method;
+        final String path;
+        final boolean authorization;
+        final boolean sessionCookie;
+
+        RecordedRequest(String method, String path, boolean authorization, boolean sessionCookie) {
+            this.method = method;
+            this.path = path;
+            this.authorization = authorization;
+            this.sessionCookie = sessionCookie;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + path + (authorization ? " (authorization)" : "") + (sessionCookie ? " (session)" : "");
+        }
+    }
+
+    private static final class Entry {
+
+        final byte[] content;
+        final String etag;
+        final long version;
+        final ZonedDateTime modified = ZonedDateTime.now(ZoneOffset.UTC);
+
+        Entry(byte[] content, long version) {
+            this.content = content;
+            this.etag = "\"" + version + "-" + content.length + "\"";
+            this.version = version;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final Map<String, Entry> files = new TreeMap<>();
+    private final Set<String> folders = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> deleted = new TreeMap<>();
+    private long version;
+    private long oldestValidVersion;
+
+    private final Queue<Integer> failures = new ConcurrentLinkedQueue<>();
+    private final Map<String, Integer> pathFailures = new ConcurrentHashMap<>();
+    private final List<RecordedRequest> requests = new CopyOnWriteArrayList<>();
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+
+    private volatile String credentials;
+    private volatile boolean issueSessions;
+    private volatile long responseDelayMillis;
+    private volatile long stallMillis;
+    private volatile int syncPageSize;
+    private volatile long bandwidthBytesPerSecond;
+
+    /**
+     * when the shared link is free again, guarded by itself
+     */
+    private final long[] linkFreeNanos = new long[1];
+
+    FakeWebdavServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        folders.add("/");
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return a client of this server configured like the plugin configures its hosts, without credentials if user
+     * is null
+     */
+    Host host(String user, String password) {
+        Host host = new Host("localhost", null, port(), user, password, null, null);
+        host.setSecure(false);
+        host.setUsePreemptiveAuth(true);
+        host.setUseDigestForPreemptiveAuth(false);
+        return host;
+    }
+
+    /**
+     * Adds or replaces a file, creating its parent folders.
+     *
+     * @param path absolute, e.g. {@code /samples/a.xml}
+     */
+    synchronized FakeWebdavServer put(String path, String content) {
+        store(path, content.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    synchronized void delete(String path) {
+        if (files.remove(path) != null) {
+            deleted.put(path, ++version);
+        }
+    }
+
+    /**
+     * Makes the server forget the changes before the current version, so older sync tokens are rejected.
+     */
+    synchronized void expireSyncTokens() {
+        oldestValidVersion = version;
+    }
+
+    /**
+     * Answers the next requests with these statuses instead of handling them, one status per request.
+     */
+    FakeWebdavServer failNext(int... statuses) {
+        for (int status : statuses) {
+            failures.add(status);
+        }
+        return this;
+    }
+
+    /**
+     * Answers every request for this path with the status instead of handling it.
+     *
+     * @param path absolute, e.g. {@code /samples}
+     */
+    FakeWebdavServer failPath(String path, int status) {
+        pathFailures.put(path, status);
+        return this;
+    }
+
+    /**
+     * Answers requests without these basic credentials, or a valid session cookie, with a 401 challenge.
+     */
+    FakeWebdavServer requireCredentials(String user, String password) {
+        credentials = "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * Whether to set a session cookie on every response to a request with valid credentials.
+     */
+    FakeWebdavServer issueSessions(boolean issue) {
+        issueSessions = issue;
+        return this;
+    }
+
+    /**
+     * Forgets all sessions, as a server does when it restarts or they time out.
+     */
+    void expireSessions() {
+        sessions.clear();
+    }
+
+    /**
+     * Delays every response by this long before its headers are sent.
+     */
+    FakeWebdavServer delayResponses(long millis) {
+        responseDelayMillis = millis;
+        return this;
+    }
+
+    /**
+     * Sends the first half of every GET body, then waits this long before the rest.
+     */
+    FakeWebdavServer stallDownloads(long millis) {
+        stallMillis = millis;
+        return this;
+    }
+
+    /**
+     * Caps the bytes per second of all GET bodies together, as a shared link would, 0 for no limit.
+     */
+    FakeWebdavServer limitBandwidth(long bytesPerSecond) {
+        bandwidthBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Adds files {@code sample-00000.xml} and onwards to a folder, each a document of records of about this size.
+     *
+     * @param folder absolute, e.g. {@code /samples}
+     */
+    synchronized FakeWebdavServer generateFolder(String folder, int count, int bytes) {
+        for (int i = 0; i < count; i++) {
+            StringBuilder xml = new StringBuilder("<records file=\"").append(i).append("\">");
+            for (int record = 0; xml.length() < bytes - 10; record++) {
+                xml.append("<record id=\"").append(record).append("\">value ").append(record % 10).append("</record>");
+            }
+            store(String.format(Locale.ROOT, "%s/sample-%05d.xml", folder, i), xml.append("</records>").toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return this;
+    }
+
+    /**
+     * Truncates sync-collection responses to this many members, 0 for no limit.
+     */
+    FakeWebdavServer pageSyncResponses(int members) {
+        syncPageSize = members;
+        return this;
+    }
+
+    List<RecordedRequest> requests() {
+        return Collections.unmodifiableList(requests);
+    }
+
+    List<RecordedRequest> requests(String method) {
+        return requests.stream().filter(request -> request.method.equals(method)).collect(Collectors.toList());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void store(String path, byte[] content) {
+        files.put(path, new Entry(content, ++version));
+        deleted.remove(path);
+        for (String parent = parent(path); parent != null; parent = parent(parent)) {
+            folders.add(parent);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String path = URI.create(exchange.getRequestURI().getRawPath()).getPath();
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            String session = session(exchange.getRequestHeaders());
+            requests.add(new RecordedRequest(method, path, authorization != null, session != null));
+            byte[] body = exchange.getRequestBody().readAllBytes();
+
+            if (responseDelayMillis > 0) {
+                Thread.sleep(responseDelayMillis);
+            }
+            Integer failure = failures.poll();
+            if (failure == null) {
+                failure = pathFailures.get(path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path);
+            }
+            if (failure != null) {
+                if (failure == 429 || failure == 503) {
+                    exchange.getResponseHeaders().set("Retry-After", "0");
+                }
+                send(exchange, failure, null, null);
+                return;
+            }
+            String expected = credentials;
+            boolean authorized = expected == null || expected.equals(authorization);
+            if (expected != null && !authorized && !sessions.contains(String.valueOf(session))) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"fake\"");
+                send(exchange, 401, null, null);
+                return;
+            }
+            if (issueSessions && authorized && expected != null) {
+                String id = UUID.randomUUID().toString();
+                sessions.add(id);
+                exchange.getResponseHeaders().add("Set-Cookie", "session=" + id + "; Path=/");
+            }
+
+            switch (method) {
+                case "PROPFIND":
+                    propFind(exchange, path, exchange.getRequestHeaders().getFirst("Depth"));
+                    break;
+                case "GET":
+                    get(exchange, path);
+                    break;
+                case "PUT":
+                    synchronized (this) {
+                        store(path, body);
+                    }
+                    send(exchange, 201, null, null);
+                    break;
+                case "REPORT":
+                    syncCollection(exchange, path, parse(body));
+                    break;
+                case "SEARCH":
+                    search(exchange, parse(body));
+                    break;
+                default:
+                    send(exchange, 405, null, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            if (exchange.getResponseCode() < 0) {
+                send(exchange, 500, "text/plain", e.toString());
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void propFind(HttpExchange exchange, String path, String depth) throws IOException {
+        StringBuilder xml = new StringBuilder(MULTISTATUS_START);
+        synchronized (this) {
+            Entry file = files.get(path);
+            String folder = path.endsWith("/") ? path : path + "/";
+            if (file != null) {
+                appendFile(xml, path, file);
+            } else if (folders.contains(folder)) {
+                appendFolder(xml, folder);
+                if (!"0".equals(depth)) {
+                    for (String child : folders) {
+                        if (folder.equals(parent(child))) {
+                            appendFolder(xml, child);
+                        }
+                    }
+                    for (Map.Entry<String, Entry> child : files.entrySet()) {
+                        if (folder.equals(parent(child.getKey()))) {
+                            appendFile(xml, child.getKey(), child.getValue());
+                        }
+                    }
+                }
+            } else {
+                send(exchange, 404, null, null);
+                return;
+            }
+        }
+        send(exchange, 207, "application/xml; charset=utf-8", xml.append(MULTISTATUS_END).toString());
+    }
+
+    private void get(HttpExchange exchange, String path) throws IOException, InterruptedException {
+        Entry file;
+        synchronized (this) {
+            file = files.get(path);
+        }
+        if (file == null) {
+            send(exchange, 404, null, null);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.getResponseHeaders().set("ETag", file.etag);
+        exchange.sendResponseHeaders(200, file.content.length == 0 ? -1 : file.content.length);
+        if (file.content.length == 0) {
+            return;
+        }
+        OutputStream out = exchange.getResponseBody();
+        int half = file.content.length / 2;
+        write(out, file.content, 0, half);
+        if (stallMillis > 0) {
+            Thread.sleep(stallMillis);
+        }
+        write(out, file.content, half, file.content.length);
+    }
+
+    /**
+     * Writes a range of a body in chunks, each one waiting for its turn on the link if the bandwidth is limited.
+     */
+    private void write(OutputStream out, byte[] content, int from, int to) throws IOException, InterruptedException {
+        for (int start = from; start < to; start += GET_CHUNK_BYTES) {
+            int length = Math.min(GET_CHUNK_BYTES, to - start);
+            long rate = bandwidthBytesPerSecond;
+            if (rate > 0) {
+                long sendAt;
+                synchronized (linkFreeNanos) {
+                    sendAt = Math.max(System.nanoTime(), linkFreeNanos[0]);
+                    linkFreeNanos[0] = sendAt + length * 1_000_000_000L / rate;
+                }
+                long wait = sendAt - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+            }
+            out.write(content, start, length);
+            out.flush();
+        }
+    }
+
+    private void syncCollection(HttpExchange exchange, String path, Document request) throws IOException {
+        NodeList tokens = request.getElementsByTagNameNS("DAV:", "sync-token");
+        String token = tokens.getLength() > 0 ? tokens.item(0).getTextContent().trim() : "";
+        String folder = path.endsWith("/") ? path : path + "/";
+        StringBuilder xml = new StringBuilder(MULTISTATUS_START);
+        synchronized (this) {
+            if (!folders.contains(folder)) {
+                send(exchange, 404, null, null);
+                return;
+            }
+            long since = 0;
+            if (!token.isEmpty()) {
+                since = token.startsWith("v") ? parseVersion(token.substring(1)) : -1;
+                if (since < oldestValidVersion || since > version) {
+                    send(exchange, 403, "application/xml; charset=utf-8", "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                            + "<d:error xmlns:d=\"DAV:\"><d:valid-sync-token/></d:error>\n");
+                    return;
+                }
+            }
+            // the changes since the token, oldest first, as a change log would hold them
+            List<Map.Entry<String, Long>> changes = new ArrayList<>();
+            for (Map.Entry<String, Entry> file : files.entrySet()) {
+                if (folder.equals(parent(file.getKey())) && file.getValue().version > since) {
+                    changes.add(Map.entry(file.getKey(), file.getValue().version));
+                }
+            }
+            if (since > 0) {
+                for (Map.Entry<String, Long> removed : deleted.entrySet()) {
+                    if (folder.equals(parent(removed.getKey())) && removed.getValue() > since) {
+                        changes.add(removed);
+                    }
+                }
+            }
+            changes.sort(Comparator.comparingLong(Map.Entry::getValue));
+            boolean truncated = syncPageSize > 0 && changes.size() > syncPageSize;
+            if (truncated) {
+                changes = changes.subList(0, syncPageSize);
+            }
+            for (Map.Entry<String, Long> change : changes) {
+                Entry file = files.get(change.getKey());
+                if (file != null) {
+                    appendFile(xml, change.getKey(), file);
+                } else {
+                    xml.append("<d:response><d:href>").append(change.getKey())
+                            .append("</d:href><d:status>HTTP/1.1 404 Not Found</d:status></d:response>\n");
+                }
+            }
+            if (truncated) {
+                xml.append("<d:response><d:href>").append(folder)
+                        .append("</d:href><d:status>HTTP/1.1 507 Insufficient Storage</d:status></d:response>\n");
+            }
+            long reached = truncated ? changes.get(changes.size() - 1).getValue() : version;
+            xml.append("<d:sync-token>v").append(reached).append("</d:sync-token>\n");
+        }
+        send(exchange, 207, "application/xml; charset=utf-8", xml.append(MULTISTATUS_END).toString());
+    }
+
+    private void search(HttpExchange exchange, Document request) throws IOException {
+        NodeList hrefs = request.getElementsByTagNameNS("DAV:", "href");
+        StringBuilder xml = new StringBuilder(MULTISTATUS_START);
+        synchronized (this) {
+            for (int i = 0; i < hrefs.getLength(); i++) {
+                String scope = URI.create(hrefs.item(i).getTextContent().trim()).getPath();
+                String folder = scope.endsWith("/") ? scope : scope + "/";
+                for (Map.Entry<String, Entry> file : files.entrySet()) {
+                    if (folder.equals(parent(file.getKey())) && file.getKey().endsWith(".xml")) {
+                        appendFile(xml, file.getKey(), file.getValue());
+                    }
+                }
+            }
+        }
+        send(exchange, 207, "application/xml; charset=utf-8", xml.append(MULTISTATUS_END).toString());
+    }
+
+    private static void appendFolder(StringBuilder xml, String folder) {
+        xml.append("<d:response><d:href>").append(folder).append("</d:href><d:propstat><d:prop>")
+                .append("<d:resourcetype><d:collection/></d:resourcetype>")
+                .append("<d:displayname>").append(name(folder)).append("</d:displayname>")
+                .append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>\n");
+    }
+
+    private static void appendFile(StringBuilder xml, String path, Entry file) {
+        xml.append("<d:response><d:href>").append(path).append("</d:href><d:propstat><d:prop>")
+                .append("<d:resourcetype/>")
+                .append("<d:displayname>").append(name(path)).append("</d:displayname>")
+                .append("<d:getcontentlength>").append(file.content.length).append("</d:getcontentlength>")
+                .append("<d:getcontenttype>application/xml</d:getcontenttype>")
+                .append("<d:getetag>").append(file.etag).append("</d:getetag>")
+                .append("<d:getlastmodified>").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(file.modified))
+                .append("</d:getlastmodified>")
+                .append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>\n");
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static Document parse(byte[] body) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(body));
+        } catch (Exception e) {
+            throw new IOException("Malformed request body", e);
+        }
+    }
+
+    private static String session(Headers headers) {
+        List<String> cookies = headers.get("Cookie");
+        if (cookies == null) {
+            return null;
+        }
+        for (String header : cookies) {
+            for (String cookie : header.split(";")) {
+                String trimmed = cookie.trim();
+                if (trimmed.startsWith("session=")) {
+                    return trimmed.substring("session=".length());
+                }
+            }
+        }
+        return null;
+    }
+
+    private static long parseVersion(String version) {
+        try {
+            return Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the parent folder of a path, with a trailing slash, or null for the root
+     */
+    private static String parent(String path) {
+        String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        int slash = trimmed.lastIndexOf('/');
+        return slash < 0 || trimmed.isEmpty() ? null : trimmed.substring(0, slash + 1);
+    }
+
+    private static String name(String path) {
+        String trimmed = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+        return trimmed.substring(trimmed.lastIndexOf('/') + 1);
+    }
+}
@@ -0,0 +1,128 @@
+package com.actus.aif;
+
+import io.milton.common.Path;
+import io.milton.http.exceptions.NotFoundException;
+import io.milton.httpclient.HttpException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Failover between a primary and a mirror, both {@link FakeWebdavServer}s, and requests bound to the primary.
+ */
+public class HostPoolTest {
+
+    private FakeWebdavServer primary;
+    private FakeWebdavServer mirror;
+    private HostPool.Endpoint primaryEndpoint;
+    private HostPool.Endpoint mirrorEndpoint;
+    private HostPool hosts;
+    private File target;
+
+    @Before
+    public void startServers() throws Exception {
+        primary = new FakeWebdavServer().put("/samples/a.xml", "<a/>");
+        mirror = new FakeWebdavServer().put("/samples/a.xml", "<a/>");
+        primaryEndpoint = new HostPool.Endpoint("primary", primary.host(null, null));
+        mirrorEndpoint = new HostPool.Endpoint("mirror", mirror.host(null, null));
+        hosts = new HostPool(List.of(primaryEndpoint, mirrorEndpoint), new SystemStreamLog());
+        target = Files.createTempFile("sample", ".xml").toFile();
+    }
+
+    @After
+    public void stopServers() {
+        primary.close();
+        mirror.close();
+        target.delete();
+    }
+
+    @Test
+    public void serverErrorFailsOverAndAvoidsTheEndpoint() throws Exception {
+        primary.failNext(503);
+
+        download();
+
+        assertEquals("<a/>", Files.readString(target.toPath()));
+        assertEquals(1, mirror.requests("GET").size());
+        assertTrue(primaryEndpoint.isDown(System.nanoTime()));
+        assertFalse(mirrorEndpoint.isDown(System.nanoTime()));
+    }
+
+    @Test
+    public void missingResourceFailsOverWithoutAvoidingTheEndpoint() throws Exception {
+        primary.delete("/samples/a.xml");
+
+        download();
+
+        assertEquals("<a/>", Files.readString(target.toPath()));
+        assertEquals(1, primaryEndpoint.failures.get());
+        assertFalse(primaryEndpoint.isDown(System.nanoTime()));
+    }
+
+    @Test
+    public void failureOnAllEndpointsIsThrown() {
+        primary.delete("/samples/a.xml");
+        mirror.delete("/samples/a.xml");
+
+        assertThrows(NotFoundException.class, this::download);
+    }
+
+    @Test
+    public void primaryCallDoesNotFailOver() {
+        primary.failNext(503);
+
+        assertThrows(HttpException.class, this::downloadFromPrimary);
+        assertEquals(0, mirror.requests("GET").size());
+        assertTrue(primaryEndpoint.isDown(System.nanoTime()));
+    }
+
+    @Test
+    public void primaryCallWaitsForASlotOfThePrimary() throws Exception {
+        hosts.limitConcurrency(1, 1, 1);
+        assertTrue(primaryEndpoint.limiter.tryAcquire());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> call = executor.submit(() -> {
+                downloadFromPrimary();
+                return null;
+            });
+            Thread.sleep(200);
+            assertFalse(call.isDone());
+            assertEquals(0, primary.requests("GET").size());
+
+            primaryEndpoint.limiter.release(0, 0, false, true);
+            call.get(10, TimeUnit.SECONDS);
+            assertEquals(1, primary.requests("GET").size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void downloadFromPrimary() throws Exception {
+        hosts.callPrimary(host -> {
+            host.doGet(Path.path("samples/a.xml"), target, null, null);
+            return target;
+        }, File::length);
+    }
+
+    private void download() throws Exception {
+        hosts.call(host -> {
+            host.doGet(Path.path("samples/a.xml"), target, null, null);
+            return target;
+        }, File::length);
+    }
+}
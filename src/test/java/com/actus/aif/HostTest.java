@@ -0,0 +1,129 @@
+package com.actus.aif;
+
+import io.milton.common.Path;
+import io.milton.http.exceptions.NotAuthorizedException;
+import io.milton.httpclient.Host;
+import io.milton.httpclient.PropFindResponse;
+import io.milton.httpclient.SyncCollectionResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The sync-collection, search and session support of the patched milton {@link Host}, against
+ * {@link FakeWebdavServer}.
+ */
+public class HostTest {
+
+    private FakeWebdavServer server;
+    private Host host;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new FakeWebdavServer()
+                .put("/samples/a.xml", "<a/>")
+                .put("/samples/b.xml", "<b/>")
+                .put("/samples/c.xml", "<c/>");
+        host = server.host(null, null);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void initialSyncReturnsAllMembers() throws Exception {
+        SyncCollectionResult result = host.syncCollection(Path.path("samples"), null, null);
+
+        assertNotNull(result);
+        assertEquals(List.of("/samples/a.xml", "/samples/b.xml", "/samples/c.xml"), hrefs(result.getChanged()));
+        assertEquals("v3", result.getSyncToken());
+    }
+
+    @Test
+    public void syncReturnsChangesSinceToken() throws Exception {
+        server.put("/samples/b.xml", "<b>changed</b>");
+        server.delete("/samples/c.xml");
+
+        SyncCollectionResult result = host.syncCollection(Path.path("samples"), "v3", null);
+
+        assertNotNull(result);
+        assertEquals(List.of("/samples/b.xml"), hrefs(result.getChanged()));
+        assertEquals(List.of("/samples/c.xml"), result.getRemovedHrefs());
+        assertEquals("v5", result.getSyncToken());
+    }
+
+    @Test
+    public void truncatedSyncRequestsTheFollowingPages() throws Exception {
+        server.pageSyncResponses(2);
+
+        SyncCollectionResult result = host.syncCollection(Path.path("samples"), null, null);
+
+        assertNotNull(result);
+        assertEquals(List.of("/samples/a.xml", "/samples/b.xml", "/samples/c.xml"), hrefs(result.getChanged()));
+        assertEquals("v3", result.getSyncToken());
+        assertEquals(2, server.requests("REPORT").size());
+    }
+
+    @Test
+    public void expiredTokenAsksForAnInitialSync() throws Exception {
+        server.put("/samples/d.xml", "<d/>");
+        server.expireSyncTokens();
+
+        assertNull(host.syncCollection(Path.path("samples"), "v3", null));
+    }
+
+    @Test
+    public void forbiddenWithoutPreconditionIsAnAuthorizationFailure() {
+        server.failNext(403);
+
+        assertThrows(NotAuthorizedException.class, () -> host.syncCollection(Path.path("samples"), "v3", null));
+    }
+
+    @Test
+    public void searchFindsXmlFilesInScope() throws Exception {
+        server.put("/other/x.xml", "<x/>");
+
+        List<PropFindResponse> responses = host.searchXml(List.of(Path.path("samples")), "1", null, null);
+
+        assertNotNull(responses);
+        assertEquals(List.of("/samples/a.xml", "/samples/b.xml", "/samples/c.xml"), hrefs(responses));
+    }
+
+    @Test
+    public void endedSessionBringsBackPreemptiveAuthentication() throws Exception {
+        server.requireCredentials("user", "secret").issueSessions(true);
+        Host host = server.host("user", "secret");
+        host.setReuseSession(true);
+        host.propFind(Path.path("samples"), 1, null);
+        host.propFind(Path.path("samples"), 1, null);
+        server.expireSessions();
+        server.issueSessions(false);
+        host.propFind(Path.path("samples"), 1, null); // challenged, then repeated with credentials
+        host.propFind(Path.path("samples"), 1, null);
+
+        List<FakeWebdavServer.RecordedRequest> requests = server.requests();
+        assertEquals(requests.toString(), 5, requests.size());
+        assertTrue(requests.get(0).authorization);
+        assertFalse(requests.get(1).authorization);
+        assertTrue(requests.get(1).sessionCookie);
+        assertFalse(requests.get(2).authorization);
+        assertTrue(requests.get(3).authorization);
+        assertTrue(requests.get(4).authorization);
+    }
+
+    private static List<String> hrefs(List<PropFindResponse> responses) {
+        return responses.stream().map(PropFindResponse::getHref).sorted().collect(Collectors.toList());
+    }
+}
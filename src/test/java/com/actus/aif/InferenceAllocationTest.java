@@ -0,0 +1,169 @@
+package com.actus.aif;
+
+import com.thaiopensource.relaxng.edit.SchemaCollection;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures what the schema inference allocates per MB of samples and how much heap it adds, on fixed generated
+ * corpora of different shapes, and fails on a regression past the ceilings. Each shape has its own allocation ceiling,
+ * about 1.4 times what it measured; all of them can be scaled with {@code -Dinference.allocationCeilingScale} and the
+ * heap ceiling set with {@code -Dinference.maxPeakHeapGrowthMb}.
+ */
+public class InferenceAllocationTest {
+
+    private static final double MB = 1024 * 1024;
+
+    private static final double ALLOCATION_CEILING_SCALE =
+            Double.parseDouble(System.getProperty("inference.allocationCeilingScale", "1"));
+
+    /**
+     * the most the peak heap after garbage collection may grow over the heap in use before the inference
+     */
+    private static final double MAX_PEAK_HEAP_GROWTH_MB =
+            Double.parseDouble(System.getProperty("inference.maxPeakHeapGrowthMb", "16"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsStayBelowCeilings() throws Exception {
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            samples.add(writeRecords("records" + i, i, 10000).getPath());
+        }
+        assertBelowCeilings(samples, 56);
+    }
+
+    @Test
+    public void manySmallFilesStayBelowCeilings() throws Exception {
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            samples.add(writeRecords("small" + i, i, 1 + i % 3).getPath());
+        }
+        // the setup per file outweighs its few records
+        assertBelowCeilings(samples, 100);
+    }
+
+    @Test
+    public void fewHugeFilesStayBelowCeilings() throws Exception {
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            samples.add(writeRecords("huge" + i, i, 100000).getPath());
+        }
+        assertBelowCeilings(samples, 56);
+    }
+
+    @Test
+    public void deepNestingStaysBelowCeilings() throws Exception {
+        File file = folder.newFile("deep.xml");
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tree>\n");
+            for (int branch = 0; branch < 200; branch++) {
+                for (int depth = 0; depth < 100; depth++) {
+                    out.write("<level" + depth + " depth=\"" + depth + "\">");
+                }
+                out.write("<leaf>" + branch + "</leaf>");
+                for (int depth = 99; depth >= 0; depth--) {
+                    out.write("</level" + depth + ">");
+                }
+                out.write("\n");
+            }
+            out.write("</tree>\n");
+        }
+        assertBelowCeilings(List.of(file.getPath()), 28);
+    }
+
+    @Test
+    public void wideAttributeSetsStayBelowCeilings() throws Exception {
+        File file = folder.newFile("wide.xml");
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rows>\n");
+            for (int row = 0; row < 2000; row++) {
+                out.write("  <row");
+                for (int column = 0; column < 200; column++) {
+                    // every row leaves out some columns, so most attributes end up optional
+                    if ((row + column) % 7 != 0) {
+                        out.write(" c" + column + "=\"" + (column % 2 == 0 ? Integer.toString(row * column) : "v" + row) + "\"");
+                    }
+                }
+                out.write("/>\n");
+            }
+            out.write("</rows>\n");
+        }
+        assertBelowCeilings(List.of(file.getPath()), 36);
+    }
+
+    /**
+     * Infers once to warm up, then measures a second inference of the same samples, holding on to its result until
+     * a garbage collection has sampled the heap.
+     *
+     * @param maxAllocationPerInputMb the most MB the inference may allocate per MB of input, before scaling
+     */
+    private static void assertBelowCeilings(List<String> samples, double maxAllocationPerInputMb) throws Exception {
+        SchemaGenerator generator = new SchemaGenerator(new SystemStreamLog());
+        generator.infer(samples); // class loading and the first compilations are not what is measured
+        System.gc();
+        long heapBefore = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        try (InferenceMemory memory = new InferenceMemory()) {
+            long start = memory.start();
+            SchemaCollection schema = generator.infer(samples);
+            memory.finish(start, samples);
+            System.gc();
+            for (int i = 0; i < 100 && memory.peakHeap() == 0; i++) {
+                Thread.sleep(10); // the collection is reported asynchronously
+            }
+            assertNotNull(schema);
+
+            double allocatedPerMb = memory.allocatedPerInputMb() / MB;
+            double allocationCeiling = maxAllocationPerInputMb * ALLOCATION_CEILING_SCALE;
+            assumeTrue("the JVM does not count allocation per thread", allocatedPerMb > 0);
+            assertTrue(String.format(Locale.ROOT, "allocated %.1f MB per MB of input, ceiling %.1f", allocatedPerMb,
+                    allocationCeiling), allocatedPerMb <= allocationCeiling);
+
+            assumeTrue("the JVM does not report garbage collections", memory.peakHeap() > 0);
+            double growthMb = (memory.peakHeap() - heapBefore) / MB;
+            assertTrue(String.format(Locale.ROOT, "peak heap after garbage collection grew by %.1f MB, ceiling %.1f",
+                    growthMb, MAX_PEAK_HEAP_GROWTH_MB), growthMb <= MAX_PEAK_HEAP_GROWTH_MB);
+        }
+    }
+
+    /**
+     * Writes a record oriented sample with optional elements, attributes and a mix of value types.
+     */
+    private File writeRecords(String name, int index, int records) throws IOException {
+        File file = folder.newFile(name + ".xml");
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<orders batch=\"" + index + "\">\n");
+            for (int i = 0; i < records; i++) {
+                out.write("  <order id=\"" + i + "\" status=\"" + (i % 3 == 0 ? "open" : "closed") + "\">");
+                out.write("<customer>Customer " + (i % 97) + "</customer>");
+                out.write("<placed>2024-01-" + String.format(Locale.ROOT, "%02d", 1 + i % 28) + "</placed>");
+                out.write("<amount>" + (i * 7 % 1000) + "." + (i % 100) + "</amount>");
+                if (i % 5 == 0) {
+                    out.write("<note>rush</note>");
+                }
+                out.write("</order>\n");
+            }
+            out.write("</orders>\n");
+        }
+        return file;
+    }
+}
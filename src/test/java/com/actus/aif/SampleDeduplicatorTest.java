@@ -0,0 +1,44 @@
+package com.actus.aif;
+
+import io.milton.common.Path;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Matches listed resources with {@link SampleDeduplicator} before they are downloaded.
+ */
+public class SampleDeduplicatorTest {
+
+    @Test
+    public void sameResourceListedAgainIsSkipped() {
+        SampleDeduplicator deduplicator = new SampleDeduplicator();
+
+        assertFalse(deduplicator.isDuplicateResource(resource("/dav/a/order.xml", "a/order.xml", "\"1\"")));
+        // the same path from a mirror with another root
+        assertTrue(deduplicator.isDuplicateResource(resource("/mirror/dav/a/order.xml", "a/order.xml", "\"1\"")));
+    }
+
+    @Test
+    public void equalETagUnderAnotherPathIsDownloaded() {
+        SampleDeduplicator deduplicator = new SampleDeduplicator();
+
+        assertFalse(deduplicator.isDuplicateResource(resource("/dav/a/order.xml", "a/order.xml", "\"1\"")));
+        // servers derive ETags from e.g. the modification time and size, which other files share
+        assertFalse(deduplicator.isDuplicateResource(resource("/dav/b/invoice.xml", "b/invoice.xml", "\"1\"")));
+    }
+
+    @Test
+    public void changedResourceIsDownloaded() {
+        SampleDeduplicator deduplicator = new SampleDeduplicator();
+
+        assertFalse(deduplicator.isDuplicateResource(resource("/dav/a/order.xml", "a/order.xml", "\"1\"")));
+        assertFalse(deduplicator.isDuplicateResource(resource("/dav/a/order.xml", "a/order.xml", "\"2\"")));
+    }
+
+    private static WebdavResource resource(String href, String path, String etag) {
+        Path parsed = Path.path(path);
+        return new WebdavResource(parsed.getName(), href, parsed, etag, 100L, "application/xml");
+    }
+}
@@ -0,0 +1,93 @@
+package com.actus.aif;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Splits generated samples with {@link SampleSharder} and joins the skeletons of the shards with
+ * {@link SampleSkeleton#stitch}, which must give the skeleton of the whole sample.
+ */
+public class SampleSharderTest {
+
+    private static final int RECORDS = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stitchedShardsKeepWhatSurroundsTheRecords() throws Exception {
+        File sample = writeSample("<orders xmlns=\"urn:orders\"><header><created>2024-01-01</created></header>",
+                "</orders>");
+
+        assertStitchedEqualsWhole(new SampleSharder(null), sample);
+    }
+
+    @Test
+    public void stitchedShardsContinueNestedAncestors() throws Exception {
+        File sample = writeSample("<export><batch id=\"1\"><header><created>2024-01-01</created></header>",
+                "<footer>end</footer></batch></export>");
+
+        assertStitchedEqualsWhole(new SampleSharder("order"), sample);
+    }
+
+    @Test
+    public void stitchedShardsInferTheSchemaOfTheWholeSample() throws Exception {
+        File sample = writeSample("<orders><header><created>2024-01-01</created></header>", "</orders>");
+        File stitched = folder.newFile("stitched.xml");
+        Files.write(stitched.toPath(), stitch(new SampleSharder(null), sample));
+
+        assertEquals(SampleSkeletonTest.xsd(sample), SampleSkeletonTest.xsd(stitched));
+    }
+
+    private static void assertStitchedEqualsWhole(SampleSharder sharder, File sample) throws Exception {
+        String stitched = new String(stitch(sharder, sample), StandardCharsets.UTF_8);
+
+        assertEquals(new String(new SampleSkeleton().reduce(sample), StandardCharsets.UTF_8), stitched);
+    }
+
+    private static byte[] stitch(SampleSharder sharder, File sample) throws Exception {
+        List<SampleSharder.Shard> shards = sharder.split(sample, 1024);
+        assertTrue("expected several shards, got " + shards.size(), shards.size() > 2);
+
+        SampleSkeleton reducer = new SampleSkeleton();
+        List<SampleSkeleton.Node> skeletons = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        for (SampleSharder.Shard shard : shards) {
+            try (InputStream in = shard.open()) {
+                skeletons.add(reducer.read(in));
+            }
+            depths.add(shard.depth);
+        }
+        return reducer.stitch(skeletons, depths);
+    }
+
+    /**
+     * Writes records whose placed dates have the shape of a date throughout, but one near the end is no valid date.
+     */
+    private File writeSample(String before, String after) throws IOException {
+        File file = folder.newFile();
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + before + "\n");
+            for (int i = 0; i < RECORDS; i++) {
+                String placed = i == RECORDS - 10 ? "2024-13-45" : "2024-01-" + (10 + i % 18);
+                out.write("  <order id=\"" + i + "\"><customer>Customer " + i + "</customer><placed>" + placed
+                        + "</placed><amount>" + i + ".5</amount></order>\n");
+            }
+            out.write(after + "\n");
+        }
+        return file;
+    }
+}
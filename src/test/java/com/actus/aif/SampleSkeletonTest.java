@@ -0,0 +1,83 @@
+package com.actus.aif;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Infers a schema from generated samples and from their {@link SampleSkeleton}s, which must be the same. The values
+ * are chosen so that their shape alone would suggest a narrower datatype than trang infers.
+ */
+public class SampleSkeletonTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void invalidDateIsKept() throws Exception {
+        assertSkeletonInfersSameSchema(values("2020-01-01", "2020-02-01", "2020-13-45"));
+    }
+
+    @Test
+    public void invalidTimeIsKept() throws Exception {
+        assertSkeletonInfersSameSchema(values("10:00:00", "11:30:00", "25:99:99"));
+    }
+
+    @Test
+    public void shortValueIsKeptAfterLongOnes() throws Exception {
+        String longDecimal = "0." + "0".repeat(40) + "1";
+        assertSkeletonInfersSameSchema(values(longDecimal, longDecimal + "2", "0.5"));
+    }
+
+    @Test
+    public void longHexBinaryIsKeptAfterShortOnes() throws Exception {
+        assertSkeletonInfersSameSchema(values("0a1b", "1c2d", "0f".repeat(70)));
+    }
+
+    @Test
+    public void longBase64BinaryIsKeptAfterShortOnes() throws Exception {
+        assertSkeletonInfersSameSchema(values("ab+/", "cd/+", "ab+/".repeat(40)));
+    }
+
+    @Test
+    public void attributeValuesAreClassifiedLikeText() throws Exception {
+        assertSkeletonInfersSameSchema("<values><v at=\"2020-01-01\"/><v at=\"2020-02-01\"/><v at=\"2020-02-30\"/></values>");
+    }
+
+    private static String values(String... values) {
+        StringBuilder xml = new StringBuilder("<values>");
+        for (String value : values) {
+            xml.append("<v>").append(value).append("</v>");
+        }
+        return xml.append("</values>").toString();
+    }
+
+    private void assertSkeletonInfersSameSchema(String xml) throws Exception {
+        File sample = folder.newFile("sample.xml");
+        Files.writeString(sample.toPath(), xml);
+        File skeleton = folder.newFile("skeleton.xml");
+        Files.write(skeleton.toPath(), new SampleSkeleton().reduce(sample));
+
+        assertEquals(xsd(sample), xsd(skeleton));
+    }
+
+    static String xsd(File sample) throws Exception {
+        SchemaGenerator generator = new SchemaGenerator(new SystemStreamLog());
+        File xsd = File.createTempFile("schema", ".xsd");
+        try {
+            generator.write(generator.infer(List.of(sample.getPath())), xsd.getPath());
+            return Files.readString(xsd.toPath(), StandardCharsets.UTF_8);
+        } finally {
+            xsd.delete();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.actus.aif;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Partitions generated samples by their root element with {@link SchemaPartitions}.
+ */
+public class SchemaPartitionsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void prologDoesNotHideTheRootElement() throws Exception {
+        Sample plain = sample("plain.xml", "<order id=\"1\"/>");
+        Sample doctype = sample("doctype.xml", "<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE order SYSTEM \"order.dtd\">\n<order id=\"2\"/>");
+        Sample internalSubset = sample("subset.xml", "<!DOCTYPE order [<!ENTITY company \"ACME\">]>\n"
+                + "<!-- exported -->\n<?generator fake?>\n<order id=\"3\">&company;</order>");
+        Sample invoice = sample("invoice.xml", "<!DOCTYPE invoice SYSTEM \"invoice.dtd\">\n<i:invoice xmlns:i=\"urn:invoice\"/>");
+
+        Map<String, List<Sample>> partitions = new SchemaPartitions(SchemaPartitions.BY_ROOT_ELEMENT, new SystemStreamLog())
+                .group(List.of(plain, doctype, internalSubset, invoice));
+
+        assertEquals(Set.of("order", "{urn:invoice}invoice"), partitions.keySet());
+        assertEquals(List.of(plain, doctype, internalSubset), partitions.get("order"));
+    }
+
+    private Sample sample(String name, String xml) throws Exception {
+        File file = folder.newFile(name);
+        Files.writeString(file.toPath(), xml);
+        return new Sample(name, file.getPath(), file, file.length(), 0, null);
+    }
+}
@@ -0,0 +1,94 @@
+package com.actus.aif;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lists and downloads generated folders of thousands of samples from a {@link FakeWebdavServer} through the plugin's
+ * discovery and download pipeline, and checks the number of requests and the throughput.
+ */
+public class WebdavLoadTest {
+
+    private static final double MB = 1024 * 1024;
+
+    private FakeWebdavServer server;
+    private HostPool hosts;
+    private XmlToXsdMojo mojo;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new FakeWebdavServer();
+        hosts = HostPool.of(server.host(null, null), new SystemStreamLog());
+        mojo = new XmlToXsdMojo();
+        set("webdavXmlFolderPaths", List.of("samples"));
+        set("downloadThreads", 8);
+        set("maxInFlightBytes", 16L * 1024 * 1024);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void hugeFolderIsListedWithoutRequestsPerFile() throws Exception {
+        server.generateFolder("/samples", 5000, 256);
+
+        List<WebdavResource> found = mojo.listXmlFiles(hosts, "samples");
+
+        assertEquals(5000, found.size());
+        assertTrue("listing took " + server.requests().size() + " requests", server.requests().size() < 10);
+    }
+
+    @Test
+    public void everyFileOfAHugeFolderIsFetchedWithOneRequest() throws Exception {
+        server.generateFolder("/samples", 2000, 1024);
+
+        long start = System.nanoTime();
+        List<Sample> samples = fetch();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(2000, samples.size());
+        assertEquals(2000, server.requests("GET").size());
+        double filesPerSecond = samples.size() / seconds;
+        assertTrue(String.format(Locale.ROOT, "fetched %.0f files per second", filesPerSecond), filesPerSecond >= 50);
+    }
+
+    @Test
+    public void downloadsSaturateALimitedLink() throws Exception {
+        long bytesPerSecond = 2L * 1024 * 1024;
+        server.generateFolder("/samples", 40, 100 * 1024).limitBandwidth(bytesPerSecond);
+
+        long start = System.nanoTime();
+        List<Sample> samples = fetch();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(40, samples.size());
+        assertEquals(40, server.requests("GET").size());
+        double throughput = samples.stream().mapToLong(sample -> sample.size).sum() / seconds;
+        String measured = String.format(Locale.ROOT, "%.2f MB/s of a %.2f MB/s link", throughput / MB, bytesPerSecond / MB);
+        assertTrue(measured, throughput >= 0.6 * bytesPerSecond);
+        assertTrue(measured, throughput <= 1.1 * bytesPerSecond);
+    }
+
+    private List<Sample> fetch() throws Exception {
+        List<Sample> samples = mojo.fetchSamples(hosts, sink -> mojo.discoverWebdavFiles(hosts, sink));
+        samples.forEach(sample -> sample.file.delete());
+        return samples;
+    }
+
+    private void set(String name, Object value) throws ReflectiveOperationException {
+        Field field = XmlToXsdMojo.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(mojo, value);
+    }
+}
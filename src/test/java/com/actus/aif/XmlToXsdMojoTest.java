@@ -0,0 +1,99 @@
+package com.actus.aif;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Discovery and download of samples by {@link XmlToXsdMojo} from a {@link FakeWebdavServer} that fails part of the
+ * way through.
+ */
+public class XmlToXsdMojoTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String prefix = "sample-" + UUID.randomUUID();
+    private FakeWebdavServer server;
+    private HostPool hosts;
+    private XmlToXsdMojo mojo;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new FakeWebdavServer()
+                .put("/samples/" + prefix + "-a.xml", "<a/>")
+                .put("/samples/" + prefix + "-b.xml", "<b/>")
+                .put("/broken/c.xml", "<c/>");
+        hosts = HostPool.of(server.host(null, null), new SystemStreamLog());
+        mojo = new XmlToXsdMojo();
+        set("webdavXmlFolderPaths", List.of("samples", "broken"));
+        set("downloadThreads", 2);
+        set("maxInFlightBytes", 1024L * 1024);
+    }
+
+    @After
+    public void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void failedListingFailsTheFetchAndDiscardsDownloads() {
+        server.failPath("/broken", 500);
+
+        assertThrows(MojoExecutionException.class, () -> mojo.fetchSamples(hosts, sink -> mojo.discoverWebdavFiles(hosts, sink)));
+
+        assertEquals(2, server.requests("GET").size());
+        assertArrayEquals(new File[0], new File(System.getProperty("java.io.tmpdir"))
+                .listFiles((directory, name) -> name.startsWith(prefix)));
+    }
+
+    @Test
+    public void failedSearchIsThrown() throws Exception {
+        set("useSearch", true);
+        server.failNext(500);
+
+        assertThrows(MojoExecutionException.class, () -> mojo.discoverWebdavFiles(hosts, resources -> { }));
+    }
+
+    @Test
+    public void failedSyncIsThrown() throws Exception {
+        set("useSyncCollection", true);
+        set("syncStatePath", new File(folder.getRoot(), "sync-state").getPath());
+        server.failNext(500);
+
+        assertThrows(MojoExecutionException.class, () -> mojo.discoverWebdavFiles(hosts, resources -> { }));
+    }
+
+    @Test
+    public void unsupportedSearchFallsBackToListing() throws Exception {
+        set("useSearch", true);
+        server.failNext(501);
+
+        List<WebdavResource> found = new ArrayList<>();
+        mojo.discoverWebdavFiles(hosts, found::addAll);
+
+        assertEquals(3, found.size());
+        assertTrue(server.requests("PROPFIND").size() > 0);
+    }
+
+    private void set(String name, Object value) throws ReflectiveOperationException {
+        Field field = XmlToXsdMojo.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(mojo, value);
+    }
+}